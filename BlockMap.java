@@ -0,0 +1,201 @@
+/*
+ * BlockMap
+ *
+ * an in-memory copy of the blocks that belong to a file, stored as extents
+ * (a starting block and how many blocks follow it on the disk)
+ *
+ * it gets filled in once from the inode's direct and indirect pointers, and
+ * after that it's kept up to date whenever a block is allocated, so turning a
+ * seek pointer into a block number never needs to read the indirect block
+ */
+public class BlockMap
+{
+  private int[] start;   // the first disk block of each extent
+  private int[] length;  // how many contiguous blocks are in each extent
+  private int[] first;   // the file block index each extent starts at
+  private int count;     // the number of extents in use
+  private int blocks;    // the total number of blocks in the map
+
+  /*
+   * constructor
+   *
+   * makes an empty map (a file with no blocks)
+   */
+  public BlockMap()
+  {
+    start  = new int[4];
+    length = new int[4];
+    first  = new int[4];
+    count  = 0;
+    blocks = 0;
+  }
+
+  /*
+   * add
+   *
+   * @param  : block : int : the disk block to add to the end of the file
+   * @return : void
+   *
+   * appends a block to the map, if it comes right after the last block it
+   * just makes the last extent longer, otherwise it starts a new one
+   */
+  public void add(int block)
+  {
+    if(count > 0 && start[count-1] + length[count-1] == block)
+    {
+      // it's contiguous with the last extent, so just grow that
+      length[count-1]++;
+      blocks++;
+      return;
+    }
+
+    // make room for another extent if we need to
+    if(count == start.length)
+    {
+      start  = grow(start);
+      length = grow(length);
+      first  = grow(first);
+    }
+
+    start[count]  = block;
+    length[count] = 1;
+    first[count]  = blocks;
+    count++;
+    blocks++;
+  }
+
+  /*
+   * get
+   *
+   * @param  : index : int : the block index inside the file (seekPtr / 512)
+   * @return : int : the disk block holding it, or -1 if it isn't mapped
+   *
+   * finds the extent holding the index (binary search) and returns the
+   * matching disk block
+   */
+  public int get(int index)
+  {
+    if(index < 0 || index >= blocks)
+    {
+      return -1;
+    }
+
+    int e = find(index);
+    return start[e] + (index - first[e]);
+  }
+
+  /*
+   * runLength
+   *
+   * @param  : index : int : the block index inside the file
+   * @return : int : how many blocks starting at index are contiguous on disk
+   *
+   * this is what lets a caller turn a byte range into a few runs of blocks
+   */
+  public int runLength(int index)
+  {
+    if(index < 0 || index >= blocks)
+    {
+      return 0;
+    }
+
+    int e = find(index);
+    return length[e] - (index - first[e]);
+  }
+
+  /*
+   * size
+   *
+   * @return : int : the number of blocks in the map
+   */
+  public int size()
+  {
+    return blocks;
+  }
+
+  /*
+   * extents
+   *
+   * @return : int : the number of extents in the map
+   */
+  public int extents()
+  {
+    return count;
+  }
+
+  /*
+   * extentStart
+   *
+   * @param  : e : int : which extent
+   * @return : int : the first disk block of that extent
+   */
+  public int extentStart(int e)
+  {
+    return start[e];
+  }
+
+  /*
+   * extentLength
+   *
+   * @param  : e : int : which extent
+   * @return : int : how many blocks are in that extent
+   */
+  public int extentLength(int e)
+  {
+    return length[e];
+  }
+
+  /*
+   * lastBlock
+   *
+   * @return : int : the last disk block of the file, or -1 if it's empty
+   */
+  public int lastBlock()
+  {
+    if(count == 0)
+    {
+      return -1;
+    }
+    return start[count-1] + length[count-1] - 1;
+  }
+
+  /*
+   * find
+   *
+   * @param  : index : int : the block index inside the file
+   * @return : int : the extent holding that index
+   *
+   * binary search over the starting index of each extent
+   */
+  private int find(int index)
+  {
+    int low = 0;
+    int high = count - 1;
+    while(low < high)
+    {
+      int mid = (low + high + 1) / 2;
+      if(first[mid] <= index)
+      {
+        low = mid;
+      }
+      else
+      {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * grow
+   *
+   * @param  : a : int[] : the array to grow
+   * @return : int[] : a copy of (a) twice as long
+   */
+  private static int[] grow(int[] a)
+  {
+    int[] retval = new int[a.length * 2];
+    System.arraycopy(a,0,retval,0,a.length);
+    return retval;
+  }
+}
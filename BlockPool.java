@@ -0,0 +1,122 @@
+/*
+ * BlockPool
+ *
+ * a run of free blocks one thread has reserved from the superblock's bitmap,
+ * so it can hand itself single blocks without touching the shared bitmap
+ * every time (the bitmap is only touched once per batch)
+ *
+ * the blocks are already marked used in the bitmap, so nobody else can get
+ * them, when the superblock writes the bitmap out it clears whatever's in
+ * the pool right then from the copy it writes (so reserved blocks never
+ * end up used on the disk, even ones reserved in the middle of a sync)
+ *
+ * only its own thread takes from it, the lock is for the superblock
+ * draining it or reading it, and the owner holds it while it reserves a
+ * new batch, so the superblock never sees a batch that's claimed in the
+ * bitmap but not in the pool yet
+ */
+public class BlockPool
+{
+  private Thread owner;  // the thread it belongs to
+  private int next;      // the next block to hand out
+  private int end;       // one past the last reserved block
+
+  /*
+   * constructor
+   *
+   * makes an empty pool for the current thread
+   */
+  public BlockPool()
+  {
+    owner = Thread.currentThread();
+    next = 0;
+    end = 0;
+  }
+
+  /*
+   * take
+   *
+   * @return : int : the next reserved block, or -1 if the pool is empty
+   */
+  public synchronized int take()
+  {
+    return next < end ? next++ : -1;
+  }
+
+  /*
+   * fill
+   *
+   * @param  : start : int : the first block of a run that was just reserved
+   * @param  : n : int : how many blocks are in it
+   * @return : void
+   *
+   * the pool has to be empty (anything left in it would be lost)
+   */
+  public synchronized void fill(int start, int n)
+  {
+    next = start;
+    end = start + n;
+  }
+
+  /*
+   * drain
+   *
+   * @param  : superblock : Superblock : where the blocks came from
+   * @return : boolean : whether there was anything to give back
+   *
+   * gives every block still in the pool back to the bitmap
+   */
+  public synchronized boolean drain(Superblock superblock)
+  {
+    if(next >= end)
+    {
+      return false;
+    }
+    superblock.returnBlocks(next, end - next);
+    next = end;
+    return true;
+  }
+
+  /*
+   * clearReserved
+   *
+   * @param  : first : int : the block the first bit of (map) is for
+   * @param  : map : byte[] : a copy of part of the bitmap
+   * @return : boolean : whether any blocks in the copy were cleared
+   *
+   * marks the blocks still in the pool as free in the copy
+   */
+  public synchronized boolean clearReserved(int first, byte[] map)
+  {
+    int from = Math.max(next, first);
+    int to = Math.min(end, first + map.length * 8);
+    for(int b = from; b < to; b++)
+    {
+      map[(b - first) >> 3] &= ~(1 << ((b - first) & 7));
+    }
+    return from < to;
+  }
+
+  /*
+   * clear
+   *
+   * @return : void
+   *
+   * forgets the blocks without giving them back (for when the bitmap they
+   * came from is thrown away)
+   */
+  public synchronized void clear()
+  {
+    next = end;
+  }
+
+  /*
+   * isOrphaned
+   *
+   * @return : boolean : whether the thread it belongs to has finished
+   */
+  public boolean isOrphaned()
+  {
+    return !owner.isAlive();
+  }
+}
@@ -1,47 +1,113 @@
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /*
  * Directory
  *
  * This is a "folder" in the file system
  *
- * In a normal tree-shaped file system, you can have directories inside of
- * directories, but here it just serves as a way to translate filenames
- * to inode numbers
+ * It translates the names in one directory to inode numbers, some of which
+ * can be directories themselves (their inodes are flagged FLAG_DIRECTORY),
+ * the root is inode 0 and DirectoryTree ties them together into paths
  *
  * It uses a hash table for retrieval, with chaining for collision resolution
- * (each slot is a linked list)
+ * (each slot is a linked list), the number of buckets is a power of two and
+ * doubles whenever the table gets 3/4 full, so the chains stay short no
+ * matter how many files there are
+ *
+ * Lookups, creates and deletes lock only the bucket they're in (through a
+ * fixed set of lock stripes) plus the read side of a table lock, so files in
+ * different buckets can be made at the same time, resizing the table takes
+ * the write side
+ *
+ * On the disk every entry has a fixed slot in the file, the first block is a
+ * header and each block after it holds slotsPerBlock slots, so adding or
+ * removing a file only changes (and only rewrites) the block its slot is in
  */
 public class Directory
 {
   // the maximum length of a filename
   private static final int maxNameLength = 30;
 
-  // the size of the table (in entries) and the size of an entry (in bytes)
-  private static final int tableSize = 100;
+  // the starting size of the table (in buckets, always a power of two), how
+  // full it gets before it doubles, and the size of an entry (in bytes)
+  private static final int minTableSize = 16;
+  private static final float loadFactor = 0.75f;
   private static final int entrySize = 33;
 
+  // how many bucket locks there are (a power of two, no bigger than
+  // minTableSize, so a bucket's entries always share a stripe)
+  private static final int lockStripes = 16;
+
+  // what lookupOrInsert should do
+  private static final int FIND           = 0; // only look
+  private static final int FIND_OR_CREATE = 1; // make it if it isn't there
+  private static final int CREATE         = 2; // make it, fail if it's there
+
+  // the file layout, a header block and then slotsPerBlock entries per block
+  // (the header starts with a -1 where the old layout had its entry count,
+  // so old directories can still be read)
+  private static final int slotsPerBlock = Disk.blockSize / entrySize;
+  private static final short headerMarker = -1;
+  private static final short layoutVersion = 1;
+
   /*
    * TableEntry
    *
    * represents a single entry in the table
+   *
+   * the name is kept as a String with its hash, so a lookup can skip any
+   * entry whose hash doesn't match and compare the rest without making a
+   * new String
    */
   private class TableEntry
   {
-    public char[] name;     // the name of the file
+    public String name;     // the name of the file
     public byte nameSize;   // the size of the filename
+    public int hash;        // hash(name), worked out once
     public short Inumber;   // the inumber associated with this file
     public TableEntry next; // the next entry (for
+    public int slot;        // where the entry lives in the file
 
     /*
      * constructor
      */
     public TableEntry()
     {
-      name = new char[maxNameLength];
-      nameSize = 0;
+      setName("");
       Inumber = 0;
       next = null;
     }
 
+    /*
+     * setName
+     *
+     * @param  : s : String : the name of the file
+     * @return : void
+     *
+     * sets the name, its size and its hash
+     */
+    public void setName(String s)
+    {
+      name = s;
+      nameSize = (byte)s.length();
+      hash = hash(s);
+    }
+
+    /*
+     * matches
+     *
+     * @param  : s : String : the name to compare against
+     * @param  : h : int : hash(s)
+     * @return : boolean : whether this is the entry for (s)
+     */
+    public boolean matches(String s, int h)
+    {
+      return hash == h && name.equals(s);
+    }
+
     /*
      * toBuffer
      *
@@ -64,8 +130,7 @@ public class Directory
       {
         if(i < nameSize)
         {
-          //SysLib.cout(Integer.toString(pos)+Character.toString(name[i])+" ");
-          buffer[pos] = (byte)name[i];
+          buffer[pos] = (byte)name.charAt(i);
         }
         else
         {
@@ -91,40 +156,24 @@ public class Directory
     {
       Inumber = FileSystem.bytesToShort(pos,buffer);
       pos += 2;
-      nameSize = buffer[pos++];
-      
-      for(int i=0; i<maxNameLength; i++)
+      int size = Math.max(0, Math.min(maxNameLength, buffer[pos++]));
+
+      char[] chars = new char[size];
+      for(int i=0; i<size; i++)
       {
-        if(i < nameSize)
-        {
-          //SysLib.cout(Character.toString(name[i])+Integer.toString(pos)+" ");
-          name[i] = (char)buffer[pos];
-        }
-        else
-        {
-          name[i] = 0;
-        }
-        pos++;
+        chars[i] = (char)buffer[pos + i];
       }
+      setName(new String(chars));
     }
 
     /*
      * getName
      *
      * @return : String : the name of the file
-     *
-     * converts the name of the file from a char array to a String 
-     * and returns it
      */
     public String getName()
     {
-      //SysLib.cout("nameSize = " + Integer.toString(nameSize) + "\n");
-      String retval = "";
-      for(int i=0; i<nameSize; i++)
-      {
-        retval += Character.toString(name[i]);
-      }
-      return retval;
+      return name;
     }
 
     /*
@@ -142,8 +191,24 @@ public class Directory
   }
 
   private Inode inode;        // the inode for this file
+  private short Inumber;      // which inode that is
   private int maxFileCount;   // maximum number of files we need to store
   private TableEntry[] table; // the hash table itself
+  private AtomicInteger entries;  // how many files are in it
+
+  // the bucket locks, and the lock that keeps the table from being resized
+  // (or reloaded) while anyone is in it
+  private ReentrantLock[] stripes;
+  private ReentrantReadWriteLock tableLock;
+
+  // the entry in each slot of the file (null if it's free), the free slots
+  // as a stack, and which blocks of the file changed since toDisk (block 0
+  // is the header)
+  private TableEntry[] slots;
+  private int slotCount;
+  private int[] freeSlots;
+  private int freeCount;
+  private BitSet dirtyBlocks;
 
   /*
    * constructor
@@ -151,21 +216,45 @@ public class Directory
    * @param : count : int : the maximum number of files the file system can
    *                        support
    *
-   * sets up the member variables and loads the data from the disk
+   * sets up the root directory and loads the data from the disk
    *
    * this is possible because this file is always represented by inode0
    * so we don't need to do any translating to setup the translator
    */
   public Directory(int count)
   {
+    this(count,(short)0);
+  }
+
+  /*
+   * constructor
+   *
+   * @param : count : int : the maximum number of files the file system can
+   *                        support
+   * @param : Inumber : short : the inode the directory's file is in
+   *
+   * sets up the member variables and loads the data from the disk (a brand
+   * new directory's file is empty, so it starts out empty)
+   */
+  public Directory(int count, short Inumber)
+  {
+    this.Inumber = Inumber;
     maxFileCount = count;
-    table = new TableEntry[tableSize];
-    for(int i=0; i<tableSize; i++)
+    table = new TableEntry[minTableSize];
+    entries = new AtomicInteger(0);
+    stripes = new ReentrantLock[lockStripes];
+    for(int i=0; i<lockStripes; i++)
     {
-      table[i] = null;
+      stripes[i] = new ReentrantLock();
     }
-
-    inode = Inode.getInode(0);
+    tableLock = new ReentrantReadWriteLock();
+    slots = new TableEntry[16];
+    slotCount = 0;
+    freeSlots = new int[16];
+    freeCount = 0;
+    dirtyBlocks = new BitSet();
+
+    inode = Inode.getInode(Inumber);
     fromDisk();
     //test();
   }
@@ -179,43 +268,22 @@ public class Directory
    */
   public void clear()
   {
-    for(int i=0; i<tableSize; i++)
+    tableLock.writeLock().lock();
+    try
     {
-      table[i] = null;
-    }
-  }
-
-  /*
-   * iexists (inode exists)
-   *
-   * @param  : filename : String : the filename to search for
-   * @return : boolean : whether or not the file exists
-   *
-   * returns whether or not the file exists in the hash table
-   *
-   * this is guaranteed not to create a new file
-   */
-  private boolean iexists(String filename)
-  { 
-    // find the contents of the table at filename's hash
-    TableEntry current = table[hash(filename)];
-    String s;
-
-    // it's a beginning of a linked list, so while it's not null ...
-    while(current != null)
-    {
-      // ... get the name of the current entry
-      s = current.getName();
-      if(filename.equals(s))
+      table = new TableEntry[minTableSize];
+      entries.set(0);
+      synchronized(this)
       {
-        // if it's a match return true
-        return true;
+        slotCount = 0;
+        freeCount = 0;
+        dirtyBlocks.set(0);
       }
-      // if not, search the next link (if it's null the while loop will stop)
-      current = current.next;
     }
-
-    return false;
+    finally
+    {
+      tableLock.writeLock().unlock();
+    }
   }
 
   /*
@@ -232,33 +300,12 @@ public class Directory
    */
   public short iretrieve(String filename,String mode)
   {
-    // find the contents of the table at filename's hash
-    TableEntry current = table[hash(filename)];
-    String s;
-
-    // it's a beginning of a linked list, so while it's not null
-    while(current != null)
+    // only writing can make a new file
+    if(mode.equals("w") || mode.equals("w+") || mode.equals("a"))
     {
-      // get the current name
-      s = current.getName();
-      if(filename.equals(s))
-      {
-        // if we find a match returns its inode number
-        return current.Inumber;
-      }
-      // otherwise search the next one
-      current = current.next;
-    }
-
-    // if we get to here, it's not in the file table
-    // So if we're not writing to the file ...
-    if(!mode.equals("w") && !mode.equals("w+") && !mode.equals("a"))
-    {
-      // ... return an error
-      return -1;
+      return lookupOrInsert(filename,FIND_OR_CREATE,Inode.FLAG_USED);
     }
-    // otherwise allocate a new file and return it
-    return ialloc(filename);
+    return lookupOrInsert(filename,FIND,Inode.FLAG_USED);
   }
 
   /*
@@ -268,53 +315,129 @@ public class Directory
    * @return : short : the inode number of the new file
    *
    * allocates a new file entry (with a new inode) and returns its inode number
+   * (or -1 if the file already exists)
    */
   public short ialloc(String filename)
   {
-    // don't create a new file if it already exists
-    if(iexists(filename))
-    {
-      //SysLib.cout("inode already exists: -1\n");
-      return -1;
-    }
-
-    // allocate a new inode, and return failure if it fails
-    short Inum = Inode.allocateInode();
-    if(Inum == -1)
-    {
-      //SysLib.cout("ialloc could not allocate node: -1\n");
-      return -1;
-    }
+    return lookupOrInsert(filename,CREATE,Inode.FLAG_USED);
+  }
 
-    // find out where the new file entry goes
-    int hashSlot = hash(filename);
+  /*
+   * imkdir (inode make directory)
+   *
+   * @param  : filename : String : the name of the new directory
+   * @return : short : the inode number of the new directory (or -1 if
+   *                   something by that name already exists)
+   *
+   * like ialloc, but the new inode is flagged as a directory
+   */
+  public short imkdir(String filename)
+  {
+    return lookupOrInsert(filename,CREATE,Inode.FLAG_DIRECTORY);
+  }
 
-    // make a new entry
-    TableEntry t = new TableEntry();
-    t.Inumber = Inum;
-    t.nameSize = (byte)filename.length();
-    for(int i=0; i<filename.length(); i++)
-    {
-      t.name[i] = filename.charAt(i);
-    }
+  /*
+   * isEmpty
+   *
+   * @return : boolean : whether there are no entries in the directory
+   */
+  public boolean isEmpty()
+  {
+    return entries.get() == 0;
+  }
 
-    if(table[hashSlot] == null)
-    {
-      // the slot is empty, just add it
-      table[hashSlot] = t;
-    }
-    else
+  /*
+   * lookupOrInsert
+   *
+   * @param  : filename : String : the filename to look for
+   * @param  : how : int : FIND, FIND_OR_CREATE or CREATE
+   * @param  : flag : short : the flag a new inode gets (FLAG_USED for a
+   *                          file, FLAG_DIRECTORY for a directory)
+   * @return : short : the inode number of the file (the one it found or the
+   *                   one it made), or -1 if there isn't one (or if it had
+   *                   to make one and couldn't)
+   *
+   * walks the file's chain once, if it isn't there the walk ends at the tail
+   * of the chain, which is where a new entry goes
+   *
+   * the whole thing happens with the bucket's stripe locked, so two threads
+   * can't both make the same file
+   */
+  private short lookupOrInsert(String filename, int how, short flag)
+  {
+    int h = hash(filename);
+    boolean grow = false;
+    short retval = -1;
+
+    tableLock.readLock().lock();
+    ReentrantLock stripe = stripes[h & (lockStripes - 1)];
+    stripe.lock();
+    try
     {
-      // the slot has something in it, add it to the end
+      // find the contents of the table at filename's hash, and remember the
+      // last entry in case we need to add to it
+      int hashSlot = h & (table.length - 1);
       TableEntry current = table[hashSlot];
-      while(current.next != null)
+      TableEntry tail = null;
+      while(current != null)
       {
+        if(current.matches(filename,h))
+        {
+          // it's here, which is an error if we wanted a new one
+          return how == CREATE ? -1 : current.Inumber;
+        }
+        tail = current;
         current = current.next;
       }
-      current.next = t;
+
+      // if we get to here, it's not in the table, so make it if we're
+      // supposed to (and the name fits in an entry)
+      if(how == FIND || filename.length() > maxNameLength)
+      {
+        return -1;
+      }
+
+      // allocate a new inode, and return failure if it fails
+      short Inum = Inode.allocateInode();
+      if(Inum == -1)
+      {
+        return -1;
+      }
+      if(flag != Inode.FLAG_USED)
+      {
+        Inode.getInode(Inum).setFlag(flag);
+        Inode.markDirty(Inum);
+      }
+
+      // make a new entry and add it to the end of the chain
+      TableEntry t = new TableEntry();
+      t.Inumber = Inum;
+      t.setName(filename);
+      if(tail == null)
+      {
+        table[hashSlot] = t;
+      }
+      else
+      {
+        tail.next = t;
+      }
+      takeSlot(t);
+
+      grow = entries.incrementAndGet() > table.length * loadFactor;
+      retval = Inum;
+    }
+    finally
+    {
+      stripe.unlock();
+      tableLock.readLock().unlock();
     }
 
-    return Inum;
+    // make room if the table is getting full
+    if(grow)
+    {
+      grow();
+    }
+    return retval;
   }
 
   /*
@@ -323,41 +446,50 @@ public class Directory
    * @param  : filename : String : the filename to free
    * @return : short : the inode number that was just deleted
    *
-   * removes an entry from the table (and deletes the inode)
+   * removes an entry from the table (and deletes the inode), in one walk of
+   * its chain with the bucket locked
    */
   public short ifree(String filename)
   {
-    // we can't delete an entry that doesn't exist
-    if(!iexists(filename))
-    {
-      return -1;
-    }
+    int h = hash(filename);
 
-    // find out where the entry is
-    int hashSlot = hash(filename);
-    String s;
-    TableEntry current = table[hashSlot];
-    TableEntry prev = null;
-    while(current != null)
+    tableLock.readLock().lock();
+    ReentrantLock stripe = stripes[h & (lockStripes - 1)];
+    stripe.lock();
+    try
     {
-      if(filename.equals(current.getName()))
+      // find out where the entry is
+      int hashSlot = h & (table.length - 1);
+      TableEntry current = table[hashSlot];
+      TableEntry prev = null;
+      while(current != null)
       {
-        //Inode.deleteInode(current.Inumber);
-        if(prev == null)
-        {
-          // this is the first entry in the linked list
-          table[hashSlot] = current.next;
-        }
-        else
+        if(current.matches(filename,h))
         {
-          // this is a middle or end link, so have the list skip this entry
-          prev.next = current.next;
+          if(prev == null)
+          {
+            // this is the first entry in the linked list
+            table[hashSlot] = current.next;
+          }
+          else
+          {
+            // this is a middle or end link, so have the list skip this entry
+            prev.next = current.next;
+          }
+
+          entries.decrementAndGet();
+          releaseSlot(current);
+          return current.Inumber;
         }
-        return current.Inumber;
-      }
 
-      prev = current;
-      current = current.next;
+        prev = current;
+        current = current.next;
+      }
+    }
+    finally
+    {
+      stripe.unlock();
+      tableLock.readLock().unlock();
     }
 
     // it wasn't in the list, return -1
@@ -368,30 +500,185 @@ public class Directory
    * hash
    *
    * @param  : s : String : the string to hash
-   * @return : int : the hash value of the string
+   * @return : int : the hash of the string, the bucket it goes in is the
+   *                 low bits (hash & (table.length - 1))
+   *
+   * mixes the bits of the string's hash code (the finalizer from
+   * MurmurHash3) so every bit of it affects the low bits, which are the
+   * only ones used to pick a bucket
+   */
+  private static int hash(String s)
+  {
+    int h = s.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /*
+   * grow
+   *
+   * @return : void
+   *
+   * doubles the table (with every bucket locked out) if it's still too full
+   * once we get the write lock, another thread may have already done it
+   */
+  private void grow()
+  {
+    tableLock.writeLock().lock();
+    try
+    {
+      if(entries.get() > table.length * loadFactor)
+      {
+        resize(table.length * 2);
+      }
+    }
+    finally
+    {
+      tableLock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * resize
+   *
+   * @param  : size : int : the new number of buckets (a power of two)
+   * @return : void
    *
-   * a simple hash function
+   * moves every entry into a table with (size) buckets, the entries
+   * themselves are reused, only the chains are relinked (the caller has to
+   * hold the write lock, or be the only one using the table)
    */
-  private int hash(String s)
+  private void resize(int size)
   {
-    // setup variables
-    long retval = 0;
-    byte temp = 0;
+    TableEntry[] old = table;
+    table = new TableEntry[size];
+    for(int i=0; i<old.length; i++)
+    {
+      TableEntry current = old[i];
+      while(current != null)
+      {
+        TableEntry next = current.next;
+        current.next = null;
+        addToChain(current);
+        current = next;
+      }
+    }
 
-    for(int i=0; i<s.length(); i++)
+    // the header holds the size, so fromDisk can make it the right size
+    synchronized(this)
     {
-      // retval = 1234 5678 9ABC DE01 -> temp = 12
-      temp = (byte)((retval >> (64 - 8)) & 0xff);
-      
-      // retval = (3456 789A BCDE 0100 | 12), 3456 789A BCDE 0112
-      retval = (retval << 8) | temp;
+      dirtyBlocks.set(0);
+    }
+  }
 
-      // retval = retval XOR the i'th char in s
-      retval ^= s.charAt(i);
+  /*
+   * tableSizeFor
+   *
+   * @param  : count : int : how many entries the table has to hold
+   * @return : int : the smallest number of buckets (a power of two) that
+   *                 holds them without going over the load factor
+   */
+  private static int tableSizeFor(int count)
+  {
+    int size = minTableSize;
+    while(count > size * loadFactor)
+    {
+      size *= 2;
+    }
+    return size;
+  }
+
+  /*
+   * takeSlot
+   *
+   * @param  : t : TableEntry : a new entry
+   * @return : void
+   *
+   * gives the entry a place in the file (a free one if there is one)
+   */
+  private synchronized void takeSlot(TableEntry t)
+  {
+    if(freeCount > 0)
+    {
+      t.slot = freeSlots[--freeCount];
+    }
+    else
+    {
+      t.slot = addSlot();
+    }
+    setSlot(t.slot,t);
+  }
+
+  /*
+   * releaseSlot
+   *
+   * @param  : t : TableEntry : an entry that was just removed
+   * @return : void
+   *
+   * its slot in the file is free now
+   */
+  private synchronized void releaseSlot(TableEntry t)
+  {
+    setSlot(t.slot,null);
+    pushFreeSlot(t.slot);
+  }
+
+  /*
+   * addSlot
+   *
+   * @return : int : a new slot at the end of the file
+   *
+   * grows the slot array if it's full, the header changes too since it
+   * holds the number of slots
+   */
+  private int addSlot()
+  {
+    if(slotCount == slots.length)
+    {
+      TableEntry[] bigger = new TableEntry[slots.length * 2];
+      System.arraycopy(slots,0,bigger,0,slotCount);
+      slots = bigger;
     }
+    dirtyBlocks.set(0);
+    return slotCount++;
+  }
 
-    // mod the retval so that 0 <= hash < tableSize
-    return (int)((retval > 0 ? retval : -retval) % tableSize);
+  /*
+   * setSlot
+   *
+   * @param  : slot : int : the slot
+   * @param  : entry : TableEntry : what goes in it (null to empty it)
+   * @return : void
+   *
+   * puts an entry in a slot and marks the block it's in as changed
+   */
+  private void setSlot(int slot, TableEntry entry)
+  {
+    slots[slot] = entry;
+    dirtyBlocks.set(1 + slot / slotsPerBlock);
+  }
+
+  /*
+   * pushFreeSlot
+   *
+   * @param  : slot : int : the empty slot
+   * @return : void
+   *
+   * adds a slot to the free slot stack, growing it if it's full
+   */
+  private void pushFreeSlot(int slot)
+  {
+    if(freeCount == freeSlots.length)
+    {
+      int[] bigger = new int[freeSlots.length * 2];
+      System.arraycopy(freeSlots,0,bigger,0,freeCount);
+      freeSlots = bigger;
+    }
+    freeSlots[freeCount++] = slot;
   }
 
   /*
@@ -399,37 +686,73 @@ public class Directory
    *
    * @return : void
    *
-   * writes the contents of the table into the file with inode 0
+   * writes the blocks of the directory's file that changed since last time,
+   * each run of changed blocks in one write (usually that's just the one
+   * block a new or deleted file's slot is in)
    */
-  public void toDisk()
+  public synchronized void toDisk()
   {
+    // don't write anything if nothing changed
+    if(dirtyBlocks.isEmpty())
+    {
+      return;
+    }
+
     // get the inode (don't trust the old version is still valid)
-    inode = Inode.getInode(0);
+    inode = Inode.getInode(Inumber);
+    FileTableEntry fte = new FileTableEntry(inode,Inumber,"w");
 
-    // convert the data into a byte array
-    byte[] buffer = new byte[2 + entrySize * maxFileCount];
-    int cursor = 0;
-    TableEntry current;
-    for(int i=0; i<tableSize; i++)
+    int first = dirtyBlocks.nextSetBit(0);
+    while(first >= 0)
     {
-      current = table[i]; 
-      while(current != null)
+      int end = dirtyBlocks.nextClearBit(first);
+      byte[] buffer = new byte[(end - first) * Disk.blockSize];
+      for(int b=first; b<end; b++)
       {
-        // write each entry to the file
-        current.toBuffer(2 + cursor * entrySize, buffer);
-        current = current.next;
-        cursor++;
+        blockToBuffer(b,buffer,(b - first) * Disk.blockSize);
       }
-    }
 
-    // store the total count at the very beginning
-    FileSystem.shortToBytes(0,(short)cursor,buffer);
+      // a run that didn't all get written (the disk is full and the file
+      // couldn't grow) stays dirty, so the next sync tries it again
+      if(FileSystem.pwrite(fte,first * Disk.blockSize,buffer,0,
+                           buffer.length) == buffer.length)
+      {
+        dirtyBlocks.clear(first,end);
+      }
+      first = dirtyBlocks.nextSetBit(end);
+    }
+  }
 
-    //FSTest.printData(buffer);
+  /*
+   * blockToBuffer
+   *
+   * @param  : block : int : which block of the file (0 is the header)
+   * @param  : buffer : byte[] : where to put it
+   * @param  : pos : int : where in the buffer the block starts
+   * @return : void
+   *
+   * builds one block of the file from memory
+   */
+  private void blockToBuffer(int block, byte[] buffer, int pos)
+  {
+    if(block == 0)
+    {
+      FileSystem.shortToBytes(pos,headerMarker,buffer);
+      FileSystem.shortToBytes(pos + 2,layoutVersion,buffer);
+      FileSystem.intToBytes(pos + 4,slotCount,buffer);
+      FileSystem.intToBytes(pos + 8,table.length,buffer);
+      return;
+    }
 
-    // write it to inode 0
-    FileTableEntry fte = new FileTableEntry(inode,(short)0,"w");
-    FileSystem.write(fte,buffer);
+    TableEntry empty = new TableEntry();
+    empty.Inumber = -1;
+    int firstSlot = (block - 1) * slotsPerBlock;
+    for(int i=0; i<slotsPerBlock; i++)
+    {
+      int slot = firstSlot + i;
+      TableEntry entry = slot < slotCount ? slots[slot] : null;
+      (entry != null ? entry : empty).toBuffer(pos + i * entrySize,buffer);
+    }
   }
 
   /*
@@ -438,54 +761,163 @@ public class Directory
    * @return : void
    *
    * reads and initializes the table from the disk, specifically the file
-   * described by inode 0
+   * described by this directory's inode (nobody else can use the table
+   * until it's done)
    */
   public void fromDisk()
   {
+    tableLock.writeLock().lock();
+    try
+    {
+      load();
+    }
+    finally
+    {
+      tableLock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * load
+   *
+   * @return : void
+   *
+   * throws away what's in memory and loads the directory file, for fromDisk
+   */
+  private synchronized void load()
+  {
+    // the table matches what's on the disk
+    table = new TableEntry[minTableSize];
+    entries.set(0);
+    slotCount = 0;
+    freeCount = 0;
+    dirtyBlocks.clear();
+
     // get the inode (don't trust the old version is still valid)
-    inode = Inode.getInode(0);
-    if(inode == null || inode.length <= 0)
+    inode = Inode.getInode(Inumber);
+    if(inode == null || inode.getLength() <= 0)
     {
       // fail if the inode doesn't exist or it's invalid
       return;
     }
 
-    // read it from inode 0
-    byte[] buffer = new byte[2 + entrySize * maxFileCount];
-    FileTableEntry fte = new FileTableEntry(inode,(short)0,"r");
-    FileSystem.read(fte,buffer);
+    // read it from the directory's inode (the buffer is only kept until
+    // the table is built)
+    int length = inode.getLength();
+    byte[] buffer = new byte[length];
+    FileTableEntry fte = new FileTableEntry(inode,Inumber,"r");
+    FileSystem.read(fte,buffer,0,length);
 
     //FSTest.printData(buffer);
 
-    // convert the data into a byte array
-    short count = FileSystem.bytesToShort(0,buffer);
-    int cursor = 0;
-    int index;
-    TableEntry current;
-    for(int i=0; i<count; i++)
+    if(FileSystem.bytesToShort(0,buffer) != headerMarker)
     {
-      current = new TableEntry();
-      current.fromBuffer(2 + cursor * entrySize, buffer);
-      
-      // find out where the entry is
-      index = hash(current.getName());
-      if(table[index] == null)
+      fromOldLayout(buffer);
+      return;
+    }
+
+    // make the table the size it was saved at, so it never has to grow
+    // while it's loading (it's only 0 if it was saved before the size was,
+    // then it's worked out from the number of slots)
+    int count = FileSystem.bytesToInt(4,buffer);
+    int size = FileSystem.bytesToInt(8,buffer);
+    if(size < minTableSize || (size & (size - 1)) != 0)
+    {
+      size = tableSizeFor(count);
+    }
+    table = new TableEntry[size];
+    for(int slot=0; slot<count; slot++)
+    {
+      addSlot();
+      int pos = (1 + slot / slotsPerBlock) * Disk.blockSize +
+                (slot % slotsPerBlock) * entrySize;
+      TableEntry current = new TableEntry();
+      if(pos + entrySize <= length)
       {
-        // the slot is empty, just add it
-        table[index] = current;
+        current.fromBuffer(pos,buffer);
       }
-      else
+      if(current.nameSize <= 0)
       {
-        // there's something here, find the tail of the linked list and
-        // add it after it
-        TableEntry tail = table[index];
-        while(tail.next != null)
-        {
-          tail = tail.next;
-        }
-        tail.next = current;
+        // an empty slot
+        pushFreeSlot(slot);
+        continue;
+      }
+      current.slot = slot;
+      slots[slot] = current;
+      addToChain(current);
+      entries.incrementAndGet();
+    }
+
+    // put the lowest empty slot on top, so the file fills from the front
+    for(int i=0, j=freeCount-1; i<j; i++, j--)
+    {
+      int temp = freeSlots[i];
+      freeSlots[i] = freeSlots[j];
+      freeSlots[j] = temp;
+    }
+    dirtyBlocks.clear();
+
+    // in case it was saved with more entries than fit (this saves the new
+    // size in the header)
+    if(entries.get() > table.length * loadFactor)
+    {
+      resize(tableSizeFor(entries.get()));
+    }
+  }
+
+  /*
+   * fromOldLayout
+   *
+   * @param  : buffer : byte[] : the whole directory file
+   * @return : void
+   *
+   * loads a directory saved before entries had fixed slots (a count and then
+   * the entries packed together), every entry gets a slot in order and the
+   * whole file is rewritten in the new layout on the next toDisk
+   */
+  private void fromOldLayout(byte[] buffer)
+  {
+    short count = FileSystem.bytesToShort(0,buffer);
+    table = new TableEntry[tableSizeFor(count)];
+    for(int i=0; i<count; i++)
+    {
+      TableEntry current = new TableEntry();
+      current.fromBuffer(2 + i * entrySize, buffer);
+      current.slot = addSlot();
+      setSlot(current.slot,current);
+      addToChain(current);
+      entries.incrementAndGet();
+    }
+    dirtyBlocks.set(0);
+  }
+
+  /*
+   * addToChain
+   *
+   * @param  : current : TableEntry : an entry loaded from the disk
+   * @return : void
+   *
+   * adds the entry to the end of its hash chain
+   */
+  private void addToChain(TableEntry current)
+  {
+    // find out where the entry is
+    int index = current.hash & (table.length - 1);
+    if(table[index] == null)
+    {
+      // the slot is empty, just add it
+      table[index] = current;
+    }
+    else
+    {
+      // there's something here, find the tail of the linked list and
+      // add it after it
+      TableEntry tail = table[index];
+      while(tail.next != null)
+      {
+        tail = tail.next;
       }
-      cursor++;
+      tail.next = current;
     }
   }
 
@@ -502,17 +934,26 @@ public class Directory
    */
   public void print()
   {
-    SysLib.cout("+---------------\n");
-    for(int i=0; i<tableSize; i++)
+    // keep everyone out of the table while we walk all of it
+    tableLock.writeLock().lock();
+    try
     {
-      TableEntry current = table[i];
-      while(current != null)
+      SysLib.cout("+---------------\n");
+      for(int i=0; i<table.length; i++)
       {
-        SysLib.cout(current.toString() + "\n");
-        current = current.next;
+        TableEntry current = table[i];
+        while(current != null)
+        {
+          SysLib.cout(current.toString() + "\n");
+          current = current.next;
+        }
       }
+      SysLib.cout("+---------------\n");
+    }
+    finally
+    {
+      tableLock.writeLock().unlock();
     }
-    SysLib.cout("+---------------\n");
   }
 
   /*
@@ -0,0 +1,349 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * DirectoryTree
+ *
+ * ties the directories together into a tree, so files can be named with
+ * paths like "/docs/notes/todo" (a name without a leading / is the same as
+ * one with it, everything starts at the root, which is inode 0)
+ *
+ * each directory is its own file with its own Directory object (loaded the
+ * first time a path goes through it), so saving one only writes that
+ * directory's blocks
+ *
+ * it keeps a dentry cache of full paths to inode numbers, so a deep path
+ * that was used before resolves without walking every directory above it,
+ * only paths that exist are cached, and deleting something takes its path
+ * out
+ *
+ * opening, creating and looking things up take the read side of the tree
+ * lock (the directories do their own locking), deleting takes the write
+ * side so nothing can be created in a directory while it's being removed,
+ * and the cache can't be filled with something that's being deleted
+ */
+public class DirectoryTree
+{
+  private int maxFileCount;  // maximum number of files we need to store
+
+  // every directory that's been loaded, by inumber
+  private ConcurrentHashMap<Short,Directory> directories;
+
+  // full path (like "/docs/notes") -> inumber
+  private ConcurrentHashMap<String,Short> dentries;
+
+  private ReentrantReadWriteLock treeLock;
+
+  /*
+   * constructor
+   *
+   * @param : count : int : the maximum number of files the file system can
+   *                        support
+   *
+   * loads the root directory
+   */
+  public DirectoryTree(int count)
+  {
+    maxFileCount = count;
+    directories = new ConcurrentHashMap<Short,Directory>();
+    dentries = new ConcurrentHashMap<String,Short>();
+    treeLock = new ReentrantReadWriteLock();
+
+    directories.put((short)0,new Directory(count));
+  }
+
+  /*
+   * iretrieve (inode retrieve)
+   *
+   * @param  : path : String : the path of the file
+   * @param  : mode : String : the mode we're opening it with
+   * @return : short : the inode number of the file, or -1 if it doesn't
+   *                   exist (and couldn't be made), a directory above it
+   *                   is missing, or it's a directory
+   *
+   * like Directory.iretrieve, the file is made if it doesn't exist and the
+   * mode is w, w+ or a (the directories above it have to exist already)
+   */
+  public short iretrieve(String path, String mode)
+  {
+    String[] parts = split(path);
+    if(parts == null || parts.length == 0)
+    {
+      return -1;
+    }
+
+    treeLock.readLock().lock();
+    try
+    {
+      String full = join(parts,parts.length);
+      Short cached = dentries.get(full);
+      if(cached != null)
+      {
+        return isDirectory(cached) ? -1 : cached;
+      }
+
+      Directory parent = resolveDirectory(parts,parts.length - 1);
+      if(parent == null)
+      {
+        return -1;
+      }
+
+      short inum = parent.iretrieve(parts[parts.length - 1],mode);
+      if(inum == -1)
+      {
+        return -1;
+      }
+      dentries.put(full,inum);
+      return isDirectory(inum) ? -1 : inum;
+    }
+    finally
+    {
+      treeLock.readLock().unlock();
+    }
+  }
+
+  /*
+   * imkdir (inode make directory)
+   *
+   * @param  : path : String : the path of the new directory
+   * @return : short : its inode number, or -1 if the directory above it
+   *                   doesn't exist or something is already there
+   */
+  public short imkdir(String path)
+  {
+    String[] parts = split(path);
+    if(parts == null || parts.length == 0)
+    {
+      return -1;
+    }
+
+    treeLock.readLock().lock();
+    try
+    {
+      Directory parent = resolveDirectory(parts,parts.length - 1);
+      if(parent == null)
+      {
+        return -1;
+      }
+
+      short inum = parent.imkdir(parts[parts.length - 1]);
+      if(inum == -1)
+      {
+        return -1;
+      }
+      directories.put(inum,new Directory(maxFileCount,inum));
+      dentries.put(join(parts,parts.length),inum);
+      return inum;
+    }
+    finally
+    {
+      treeLock.readLock().unlock();
+    }
+  }
+
+  /*
+   * ifree (inode free)
+   *
+   * @param  : path : String : the path of the file or directory to remove
+   * @return : short : the inode number that was removed, or -1 if it
+   *                   doesn't exist or it's a directory that isn't empty
+   *
+   * takes the entry out of its directory (the caller deletes the inode)
+   */
+  public short ifree(String path)
+  {
+    String[] parts = split(path);
+    if(parts == null || parts.length == 0)
+    {
+      return -1;
+    }
+
+    treeLock.writeLock().lock();
+    try
+    {
+      Directory parent = resolveDirectory(parts,parts.length - 1);
+      if(parent == null)
+      {
+        return -1;
+      }
+
+      String name = parts[parts.length - 1];
+      short inum = parent.iretrieve(name,"r");
+      if(inum == -1)
+      {
+        return -1;
+      }
+      if(isDirectory(inum) && !getDirectory(inum).isEmpty())
+      {
+        return -1;
+      }
+
+      parent.ifree(name);
+      directories.remove(inum);
+      dentries.remove(join(parts,parts.length));
+      return inum;
+    }
+    finally
+    {
+      treeLock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * toDisk
+   *
+   * @return : void
+   *
+   * saves every loaded directory (each one only writes what changed)
+   */
+  public void toDisk()
+  {
+    for(Directory directory : directories.values())
+    {
+      directory.toDisk();
+    }
+  }
+
+  /*
+   * print
+   *
+   * @return : void
+   *
+   * prints the root directory
+   */
+  public void print()
+  {
+    directories.get((short)0).print();
+  }
+
+  /*
+   * resolveDirectory
+   *
+   * @param  : parts : String[] : the components of a path
+   * @param  : n : int : how many of them make up the directory's path
+   * @return : Directory : the directory, or null if it doesn't exist (or
+   *                       something in the path isn't a directory)
+   *
+   * starts from the deepest directory on the path that's in the dentry
+   * cache, and only walks the directories below that
+   */
+  private Directory resolveDirectory(String[] parts, int n)
+  {
+    // find the deepest part of the path we already know
+    int known = n;
+    short inum = 0;
+    while(known > 0)
+    {
+      Short cached = dentries.get(join(parts,known));
+      if(cached != null)
+      {
+        inum = cached;
+        break;
+      }
+      known--;
+    }
+
+    // and walk down from there
+    for(int i=known; i<n; i++)
+    {
+      if(!isDirectory(inum))
+      {
+        return null;
+      }
+      inum = getDirectory(inum).iretrieve(parts[i],"r");
+      if(inum == -1)
+      {
+        return null;
+      }
+      dentries.put(join(parts,i + 1),inum);
+    }
+
+    return isDirectory(inum) ? getDirectory(inum) : null;
+  }
+
+  /*
+   * getDirectory
+   *
+   * @param  : inum : short : a directory's inode number
+   * @return : Directory : it, loaded from the disk the first time
+   */
+  private Directory getDirectory(short inum)
+  {
+    Directory retval = directories.get(inum);
+    if(retval == null)
+    {
+      Directory loaded = new Directory(maxFileCount,inum);
+      retval = directories.putIfAbsent(inum,loaded);
+      if(retval == null)
+      {
+        retval = loaded;
+      }
+    }
+    return retval;
+  }
+
+  /*
+   * isDirectory
+   *
+   * @param  : inum : short : an inode number
+   * @return : boolean : whether it's a directory (the root always is)
+   */
+  private static boolean isDirectory(short inum)
+  {
+    if(inum == 0)
+    {
+      return true;
+    }
+    Inode inode = Inode.getInode(inum);
+    return inode != null && inode.getFlag() == Inode.FLAG_DIRECTORY;
+  }
+
+  /*
+   * split
+   *
+   * @param  : path : String : a path
+   * @return : String[] : its components, with empty ones and "." dropped
+   *                      and ".." applied, or null if it goes above the root
+   */
+  private static String[] split(String path)
+  {
+    ArrayList<String> parts = new ArrayList<String>();
+    for(String part : path.split("/"))
+    {
+      if(part.length() == 0 || part.equals("."))
+      {
+        continue;
+      }
+      if(part.equals(".."))
+      {
+        if(parts.isEmpty())
+        {
+          return null;
+        }
+        parts.remove(parts.size() - 1);
+        continue;
+      }
+      parts.add(part);
+    }
+    return parts.toArray(new String[parts.size()]);
+  }
+
+  /*
+   * join
+   *
+   * @param  : parts : String[] : the components of a path
+   * @param  : n : int : how many of them to use
+   * @return : String : the full path of the first (n) components, which is
+   *                    what the dentry cache is keyed by
+   */
+  private static String join(String[] parts, int n)
+  {
+    StringBuilder retval = new StringBuilder();
+    for(int i=0; i<n; i++)
+    {
+      retval.append('/').append(parts[i]);
+    }
+    return retval.length() == 0 ? "/" : retval.toString();
+  }
+}
@@ -44,7 +44,7 @@ class FSTest extends Thread
       }
       else if(target.toLowerCase().equals("inodes"))
       {
-        for(int i=0; i<Inode.Inodes.size(); i++)
+        for(int i=0; i<Inode.size(); i++)
         {
           SysLib.cout(Integer.toString(i) + ": ");
           if(Inode.getInode(i) != null)
@@ -210,6 +210,24 @@ class FSTest extends Thread
       {
         FileSystem.sync();
       }
+      else if(target.toLowerCase().equals("commit"))
+      {
+        SysLib.cout("policy (0 immediate, 1 on close, 2 periodic): ");
+        int policy = in.nextInt();
+        SysLib.cout("period (ms): ");
+        int period = in.nextInt();
+        if(Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,Kernel.COMMITPOLICY,
+                            policy,new int[] {period}) == Kernel.ERROR)
+        {
+          SysLib.cout("error: bad policy or period\n");
+        }
+      }
+      else if(target.toLowerCase().equals("deferfree"))
+      {
+        SysLib.cout("on (1) or off (0): ");
+        int on = in.nextInt();
+        Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,Kernel.DEFERFREE,on,null);
+      }
       else if(target.toLowerCase().equals("exit") || 
               target.toLowerCase().equals("quit") ||
               target.toLowerCase().equals("q"))
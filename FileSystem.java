@@ -1,4 +1,8 @@
+import java.nio.ByteBuffer;
 import java.util.Scanner; // only used to testing
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /*
  * FileSystem
@@ -7,6 +11,13 @@ import java.util.Scanner; // only used to testing
  *
  * all the SysLib calls go to the kernel than straight to here, where
  * it goes to the proper object, and eventually to the spinny memory thing
+ *
+ * there's no lock around the whole file system, each part has its own:
+ * - every inode has a read/write lock, read takes the read side, write and
+ *   fallocate take the write side
+ * - the block allocator (the superblock's bitmap) doesn't lock, blocks are
+ *   claimed with compare-and-set, out of a small pool per thread
+ * - the file table and the directories lock by inumber / by name
  */
 public class FileSystem
 {
@@ -15,9 +26,29 @@ public class FileSystem
   public static final int SEEK_CUR = 1;
   public static final int SEEK_END = 2;
 
+  // metadata commit policies, which decide when the superblock, inodes and
+  // directory get saved to the disk (set with the kernel's COMMITPOLICY call)
+  public static final int COMMIT_IMMEDIATE = 0; // after every change
+  public static final int COMMIT_ON_CLOSE  = 1; // only when a file is closed
+  public static final int COMMIT_PERIODIC  = 2; // once a period has passed,
+                                                // checked on every change
+
+  private static volatile int commitPolicy = COMMIT_IMMEDIATE;
+  private static volatile long commitPeriod = 1000; // in ms, for PERIODIC
+  private static volatile long lastCommit = 0;      // when we last synced
+
+  // whether a sync is running (a periodic one doesn't start while it is)
+  private static AtomicBoolean committing = new AtomicBoolean(false);
+
+  // when deferred freeing is on (the kernel's DEFERFREE call), the blocks of
+  // deleted inodes wait here and are given back on the next sync (or when
+  // the disk runs out of room)
+  private static volatile boolean deferFree = false;
+  private static Vector<BlockMap> pendingFree = new Vector<BlockMap>();
+
   // superblock, directory and filetable
   private static Superblock superblock;
-  private static Directory directory;
+  private static DirectoryTree directory;
   private static FileTable filetable;
   
   /*
@@ -32,14 +63,34 @@ public class FileSystem
     // initialize the superblock (with the number of blocks)
     superblock = new Superblock(diskBlocks);
 
-    // sets up the inode and loads them from the disk
+    // sets up the inode and loads them from the disk (in whatever format the
+    // disk was formatted with), into the off-heap store, which is laid out
+    // like the inode blocks, so loading and saving copy whole blocks
+    Inode.setMappedStore(true);
     Inode.setMaxCount(superblock.totalInodes);
-    Inode.readAllFromDisk();
+    Inode.setFormat(InodeFormat.get(superblock.inodeVersion));
+    if(!superblock.isMountable())
+    {
+      // a disk from before the bitmap, its blocks can't be trusted to be
+      // anything, so it's left alone (no inodes, sync writes nothing)
+      SysLib.cerr("the disk uses the old free list, format it first\n");
+      Inode.clear();
+    }
+    else
+    {
+      Inode.readAllFromDisk();
+
+      // bring older disks up to the current inode format
+      if(superblock.inodeVersion != InodeFormat.CURRENT.version)
+      {
+        migrateInodes();
+      }
+    }
 
-    // setup the directory with the max file count, and the filetable with the
-    // directory
-    directory = new Directory(superblock.totalInodes);
-    filetable = new FileTable(directory);
+    // setup the directory tree with the max file count, and the filetable
+    // with the directory tree
+    directory = new DirectoryTree(superblock.totalInodes);
+    filetable = new FileTable(directory,superblock.totalInodes);
 
     //InodeTest();
   }
@@ -52,87 +103,153 @@ public class FileSystem
    *
    * formats the disk, setting it up with a valid, empty filesystem
    *
-   * like actual formatting, it takes a while
+   * this only writes the superblock, the first inode block and the first
+   * block of the free block bitmap, so it takes the same time no matter how
+   * big the disk is
    */
   public static boolean format(int files)
   {
-    // set superblock variables
-    superblock.totalInodes = files;
-
-    superblock.freeList = 2 + (files-1)/16;
-    if(files == 0)
+    // blocks still waiting to be freed are numbers in the old bitmap, once
+    // it's rebuilt new files can get them, so they're just forgotten
+    synchronized(pendingFree)
     {
-      superblock.freeList = 2;
+      pendingFree.clear();
     }
 
+    // set superblock variables (this also marks every data block as free
+    // in the bitmap)
+    superblock.format(files);
+
     // set Inode max count to the new value
     Inode.setMaxCount(superblock.totalInodes);
 
-    // reset inode list (except for one, there's always one for / )
-    Inode.Inodes.clear();
+    // reset inode list (except for one, there's always one for / ), new
+    // disks always get the current inode format (in the off-heap store)
+    Inode.setMappedStore(true);
+    Inode.setFormat(InodeFormat.get(superblock.inodeVersion));
     Inode.allocateInode();
 
     // reset directory and fileTable
     //directory.clear();
     //filetable.clear();
 
-    // clear the superblock and inode-reserved blocks
+    // clear the superblock (which zeroes the inode count), the rest of the
+    // inode blocks don't need clearing since only the first (count) inodes
+    // are ever read, and a block gets written in full once one of its
+    // inodes is used
     byte[] blockData = new byte[Disk.blockSize];
-    for(int i=0; i<Disk.blockSize; i++)
-    {
-      blockData[i] = 0;
-    }
-    for(int i=0; i<superblock.freeList; i++)
-    {
-      SysLib.cwrite(i,blockData);
-    }
+    SysLib.cwrite(0,blockData);
 
-    // write superblock data to block 0 and inode 0 date to block 1
+    // write superblock data and the start of the bitmap, and inode 0 data to
+    // block 1 (the data blocks don't need touching, they're all past the
+    // high water mark, so they're free)
     superblock.toDisk();
     Inode.allToDisk();
 
-    //SysLib.cout("\n|-----20%-|-----40%-|-----60%-|-----80%-|----100%-|\n");
-    int currentPrint = 0;
+    // re-initialize directory and filetable to use the new values
+    directory = new DirectoryTree(superblock.totalInodes);
+    filetable = new FileTable(directory,superblock.totalInodes);
+
+    //SysLib.cout("totalBlocks = " + 
+    //            Integer.toString(superblock.totalBlocks) + "\n");
+    //SysLib.cout("totalInodes = " + 
+    //            Integer.toString(superblock.totalInodes) + "\n");
+    //SysLib.cout("freeList    = " + 
+    //            Integer.toString(superblock.freeList) + "\n");
+
+    return true;
+  }
 
-    // every other block is a free block, which needs the index of the next
-    // free block to make a chain
-    for(int i=superblock.freeList; i<superblock.totalBlocks; i++)
+  /*
+   * migrateInodes
+   *
+   * @return : void
+   *
+   * converts a disk from an older inode format to the current one: each
+   * file's data blocks stay where they are, only the pointers to them are
+   * rebuilt (which can take new indirect blocks), then the old indirect
+   * blocks are freed and everything is saved with the new version number
+   *
+   * if the disk doesn't have room for the new indirect blocks (or a file
+   * can't be rebuilt part way through) it's left in the old format, which
+   * still works (just without the bigger files)
+   */
+  private static void migrateInodes()
+  {
+    int count = Inode.size();
+    InodeFormat target = InodeFormat.CURRENT;
+
+    // get every file's data blocks and old indirect blocks while the old
+    // pointers are still around
+    BlockMap[] data = new BlockMap[count];
+    BlockMap oldIndirect = new BlockMap();
+    int needed = 0;
+    for(int i=0; i<count; i++)
     {
-      if(i == superblock.totalBlocks - 1)
+      Inode inode = Inode.getInode(i);
+      if(inode != null)
       {
-        // the very last block doesn't link to anywhere, so -1
-        intToBytes(0, -1, blockData);
+        data[i] = inode.getBlockMap();
+        inode.addIndirectBlocks(oldIndirect);
+        needed += target.indirectBlocks(data[i].size());
       }
-      else
+    }
+
+    // the new indirect blocks are allocated before the old ones are freed,
+    // so the old pointers are still valid if something goes wrong part way
+    if(needed > superblock.freeBlocks())
+    {
+      SysLib.cerr("not enough free blocks to convert the inodes to version " +
+                  target.version + "\n");
+      return;
+    }
+
+    Inode.convert(target);
+    boolean rebuilt = true;
+    for(int i=0; i<count && rebuilt; i++)
+    {
+      if(data[i] == null)
       {
-        // otherwise link to the next block
-        intToBytes(0, i+1, blockData);
+        continue;
       }
-
-      SysLib.cwrite(i,blockData);
-    
-      if((i - superblock.freeList) * 51 / 
-         (superblock.totalBlocks - superblock.freeList) != currentPrint)
+      Inode inode = Inode.getInode(i);
+      for(int e=0; e<data[i].extents() && rebuilt; e++)
       {
-        currentPrint = (i - superblock.freeList) * 51 / 
-                       (superblock.totalBlocks - superblock.freeList);
-        //SysLib.cout("#");
+        for(int j=0; j<data[i].extentLength(e) && rebuilt; j++)
+        {
+          rebuilt = addBlock(inode, data[i].extentStart(e) + j);
+        }
       }
     }
-    //SysLib.cout("#\n");
 
-    // re-initialize directory and filetable to use the new values
-    directory = new Directory(superblock.totalInodes);
-    filetable = new FileTable(directory);
-
-    //SysLib.cout("totalBlocks = " + 
-    //            Integer.toString(superblock.totalBlocks) + "\n");
-    //SysLib.cout("totalInodes = " + 
-    //            Integer.toString(superblock.totalInodes) + "\n");
-    //SysLib.cout("freeList    = " + 
-    //            Integer.toString(superblock.freeList) + "\n");
+    // if a file couldn't be rebuilt, go back to the old format: the new
+    // indirect blocks were all free ones and nothing's been written over
+    // yet, so giving them back and reading the inodes again undoes it all
+    if(!rebuilt)
+    {
+      BlockMap newIndirect = new BlockMap();
+      for(int i=0; i<count; i++)
+      {
+        Inode inode = Inode.getInode(i);
+        if(inode != null)
+        {
+          inode.addIndirectBlocks(newIndirect);
+        }
+      }
+      releaseBlocks(newIndirect);
+      Inode.setFormat(InodeFormat.get(superblock.inodeVersion));
+      Inode.readAllFromDisk();
+      SysLib.cerr("couldn't convert the inodes to version " +
+                  target.version + "\n");
+      return;
+    }
+    releaseBlocks(oldIndirect);
 
-    return true;
+    superblock.inodeVersion = target.version;
+    superblock.dirty = true;
+    Inode.flushIndirect();
+    superblock.sync();
+    Inode.allToDisk();
   }
 
   /*
@@ -141,12 +258,137 @@ public class FileSystem
    * @param : void
    *
    * saves all the data to the disc
+   *
+   * no periodic sync starts while this runs (the writes it makes to the
+   * directory would start one inside it otherwise)
    */
   public static void sync()
   {
-    superblock.toDisk();
-    Inode.allToDisk();
+    boolean outer = committing.compareAndSet(false,true);
+    try
+    {
+      saveAll();
+    }
+    finally
+    {
+      if(outer)
+      {
+        committing.set(false);
+      }
+    }
+  }
+
+  /*
+   * saveAll
+   *
+   * @return : void
+   *
+   * does the actual work of sync (the caller has made sure a periodic sync
+   * won't start inside it)
+   */
+  private static void saveAll()
+  {
+    // nothing is written to a disk that hasn't been formatted for the
+    // bitmap yet
+    if(!superblock.isMountable())
+    {
+      return;
+    }
+
+    // this counts as a commit from the start, so writes made while it's
+    // running aren't due for another one until a whole period later
+    lastCommit = System.currentTimeMillis();
+
+    // the directory goes first since writing it can change inode 0 and
+    // the free list, then only the parts that actually changed get written
+    // (indirect blocks before the inodes that point at them)
     directory.toDisk();
+    freePending();
+    Inode.flushIndirect();
+    superblock.sync();
+    Inode.allToDisk();
+  }
+
+  /*
+   * setCommitPolicy
+   *
+   * @param  : policy : int : COMMIT_IMMEDIATE, COMMIT_ON_CLOSE or
+   *                          COMMIT_PERIODIC
+   * @param  : period : long : how often to sync (in ms) for COMMIT_PERIODIC
+   * @return : boolean : whether or not the policy was valid
+   *
+   * changes when metadata gets saved to the disk, sync (and exiting a thread)
+   * always saves everything regardless of the policy
+   */
+  public static boolean setCommitPolicy(int policy, long period)
+  {
+    if(policy < COMMIT_IMMEDIATE || policy > COMMIT_PERIODIC || period < 0)
+    {
+      return false;
+    }
+    commitPolicy = policy;
+    commitPeriod = period;
+    return true;
+  }
+
+  /*
+   * commit
+   *
+   * @param  : closing : boolean : whether this is being called from close
+   * @return : void
+   *
+   * syncs the metadata if the commit policy says it's time to
+   */
+  private static void commit(boolean closing)
+  {
+    switch(commitPolicy)
+    {
+      case COMMIT_IMMEDIATE:
+        sync();
+        break;
+
+      case COMMIT_ON_CLOSE:
+        if(closing)
+        {
+          sync();
+        }
+        break;
+
+      case COMMIT_PERIODIC:
+        commitIfDue();
+        break;
+    }
+  }
+
+  /*
+   * commitIfDue
+   *
+   * @return : void
+   *
+   * syncs if the policy is periodic and a whole period has passed since the
+   * last sync, writes and fallocate call this too (after letting go of the
+   * inode's lock), so a thread that only ever writes still gets its new
+   * blocks and lengths saved once a period
+   *
+   * only one of these syncs runs at a time, a write made while one (or a
+   * call to sync) is running, including the ones the sync makes itself,
+   * doesn't start another, the next write after it does if it's due
+   */
+  private static void commitIfDue()
+  {
+    if(commitPolicy == COMMIT_PERIODIC &&
+       System.currentTimeMillis() - lastCommit >= commitPeriod &&
+       committing.compareAndSet(false,true))
+    {
+      try
+      {
+        saveAll();
+      }
+      finally
+      {
+        committing.set(false);
+      }
+    }
   }
 
   /*
@@ -155,75 +397,215 @@ public class FileSystem
    * @param  : fte : FileTableEntry : the file table entry to read from
    * @param  : output : byte[] : the byte array to put the data into
    *
-   * reads from a file
+   * reads from a file, starting at the entry's seek pointer (and moves it
+   * past what was read)
    *
    * the FileTableEntry is extracted from this thread's TCB by the kernel
    */
   public static int read(FileTableEntry fte, byte[] output)
+  {
+    return read(fte, output, 0, output.length);
+  }
+
+  /*
+   * read
+   *
+   * @param  : fte : FileTableEntry : the file table entry to read from
+   * @param  : output : byte[] : the byte array to put the data into
+   * @param  : off : int : where in the array to put it
+   * @param  : len : int : how many bytes to read (at most)
+   * @return : int : how many bytes were read
+   *
+   * same as above, into part of the array (so callers can read straight into
+   * their own buffers)
+   */
+  public static int read(FileTableEntry fte, byte[] output, int off, int len)
+  {
+    if(!inBounds(output, off, len))
+    {
+      return Kernel.ERROR;
+    }
+    return read(fte, ByteBuffer.wrap(output, off, len));
+  }
+
+  /*
+   * read
+   *
+   * @param  : fte : FileTableEntry : the file table entry to read from
+   * @param  : output : ByteBuffer : where to put the data (from its position
+   *                                 up to its limit)
+   * @return : int : how many bytes were read (the buffer's position moves
+   *                 past them)
+   *
+   * same as above, into a ByteBuffer (which can be a direct one)
+   */
+  public static int read(FileTableEntry fte, ByteBuffer output)
   {
     // reading should fail if
     // - the FileTableEntry is null
     // - the FileTableEntry's inode is null
     // - the file is open as w or a
-    if(fte == null || fte.inode == null || 
-       fte.Mode.equals("w") || fte.Mode.equals("a"))
+    // - there's nowhere to put the data
+    if(!canRead(fte) || output == null || output.isReadOnly())
     {
       //SysLib.cout("error: mode is " + fte.Mode + "\n");
       return Kernel.ERROR;
     }
 
-    Inode inode = fte.inode;
-    //SysLib.cout("READ inode: " + inode.toString() + "\n");
-    //SysLib.cout("      inum:" + Integer.toString(fte.iNumber) + "\n");
-    //SysLib.cout("   seekptr:" + Integer.toString(fte.seekPtr) + "\n");
-    byte[] buffer = new byte[Disk.blockSize];
+    // other threads can read the file at the same time, but nobody can
+    // change its length or blocks while we're reading
+    ReentrantReadWriteLock lock = fte.inode.getLock();
+    lock.readLock().lock();
+    try
+    {
+      int bytesRead = readAt(fte.inode, fte.seekPtr, output);
+
+      // update the seek pointer
+      fte.seekPtr += bytesRead;
+
+      return bytesRead;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /*
+   * pread (positional read)
+   *
+   * @param  : fte : FileTableEntry : the file table entry to read from
+   * @param  : offset : int : where in the file to start reading
+   * @param  : output : byte[] : the byte array to put the data into
+   * @return : int : how many bytes were read (0 past the end of the file)
+   *
+   * reads from a file without using or moving the seek pointer, so any
+   * number of threads can read anywhere in the same file at once
+   */
+  public static int pread(FileTableEntry fte, int offset, byte[] output)
+  {
+    return pread(fte, offset, output, 0, output.length);
+  }
+
+  /*
+   * pread (positional read)
+   *
+   * @param  : fte : FileTableEntry : the file table entry to read from
+   * @param  : offset : int : where in the file to start reading
+   * @param  : output : byte[] : the byte array to put the data into
+   * @param  : off : int : where in the array to put it
+   * @param  : len : int : how many bytes to read (at most)
+   * @return : int : how many bytes were read (0 past the end of the file)
+   *
+   * same as above, into part of the array
+   */
+  public static int pread(FileTableEntry fte, int offset, byte[] output,
+                          int off, int len)
+  {
+    if(!inBounds(output, off, len))
+    {
+      return Kernel.ERROR;
+    }
+    return pread(fte, offset, ByteBuffer.wrap(output, off, len));
+  }
+
+  /*
+   * pread (positional read)
+   *
+   * @param  : fte : FileTableEntry : the file table entry to read from
+   * @param  : offset : int : where in the file to start reading
+   * @param  : output : ByteBuffer : where to put the data (from its position
+   *                                 up to its limit)
+   * @return : int : how many bytes were read (the buffer's position moves
+   *                 past them)
+   *
+   * same as above, into a ByteBuffer
+   */
+  public static int pread(FileTableEntry fte, int offset, ByteBuffer output)
+  {
+    if(!canRead(fte) || offset < 0 || output == null || output.isReadOnly())
+    {
+      return Kernel.ERROR;
+    }
+
+    ReentrantReadWriteLock lock = fte.inode.getLock();
+    lock.readLock().lock();
+    try
+    {
+      return readAt(fte.inode, offset, output);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /*
+   * canRead
+   *
+   * @param  : fte : FileTableEntry : a file table entry
+   * @return : boolean : whether it's an open file that can be read
+   */
+  private static boolean canRead(FileTableEntry fte)
+  {
+    return fte != null && fte.inode != null && fte.readable;
+  }
+
+  /*
+   * inBounds
+   *
+   * @param  : buffer : byte[] : an array
+   * @param  : off : int : where in it to start
+   * @param  : len : int : how many bytes
+   * @return : boolean : whether that's all inside the array
+   */
+  private static boolean inBounds(byte[] buffer, int off, int len)
+  {
+    return buffer != null && off >= 0 && len >= 0 &&
+           len <= buffer.length - off;
+  }
+
+  /*
+   * readAt
+   *
+   * @param  : inode : Inode : the file to read from (its lock is held)
+   * @param  : offset : int : where in the file to start reading
+   * @param  : output : ByteBuffer : where to put the data
+   * @return : int : how many bytes were read
+   *
+   * does the actual reading for every kind of read and pread (the byte
+   * array ones wrap their part of the array, which doesn't copy anything)
+   */
+  private static int readAt(Inode inode, int offset, ByteBuffer output)
+  {
+    // figure out how much we can actually read (we can't go past the end)
+    int toRead = Math.min(output.remaining(), inode.getLength() - offset);
+    if(toRead <= 0)
+    {
+      return 0;
+    }
+
+    // find every block the read touches up front, and read them all at once
+    int firstBlock = offset / Disk.blockSize;
+    int count = (offset + toRead - 1) / Disk.blockSize - firstBlock + 1;
+    int[] blocks = mapBlocks(inode, firstBlock, count);
+    byte[][] buffers = new byte[count][Disk.blockSize];
+    creadv(count, blocks, buffers);
 
     int bytesRead = 0;    // the running total number of bytes read
-    int block = 0;        // the current block we're reading from
+    int blockOffset = 0;  // where in the block we start reading
     int blockLength = 0;  // the length of the segment we're reading
-    int address = 0;      // the real address in the disk
-    while(bytesRead < output.length && fte.seekPtr < inode.length)
-    {
-      // calculate the block and actual address from the seekPtr
-      block = Inode.seekPointerToBlock(fte.seekPtr,fte.iNumber);
-      address = block * Disk.blockSize + fte.seekPtr % Disk.blockSize;
-      //SysLib.cout("block: " + Integer.toString(block) + "\n");
-      //SysLib.cout("addr : " + Integer.toString(address) + "\n");
-
-      // read the block from the disc
-      SysLib.cread(block,buffer);
-      
-      // start by assuming we're reading the entire block from memory
-      blockLength = Disk.blockSize;
-
-      if(block * Disk.blockSize < address)
-      {
-        // we're starting somewhere in the middle of the block
-        // subtract the distance from the beginning of the block to the address
-        blockLength -= address - (block * Disk.blockSize);
-      }
-      if( (block+1) * Disk.blockSize - address > output.length - bytesRead)
-      {
-        // we're ending before the end of the block
-        // subtract the distance from where we'll run out of space
-        // to the end of the block
-        blockLength -= ((block+1) * Disk.blockSize)
-                     - (address + output.length - bytesRead);
-      }
+    for(int i=0; i<count; i++)
+    {
+      // only the first block can start in the middle, and only the last one
+      // can end before the end of the block
+      blockOffset = (offset + bytesRead) % Disk.blockSize;
+      blockLength = Math.min(Disk.blockSize - blockOffset, toRead - bytesRead);
 
       // copy the data from the buffer
-      System.arraycopy(buffer,fte.seekPtr % Disk.blockSize,
-                       output,bytesRead,blockLength);
-
-      // update the total bytes read and the seek pointer
+      output.put(buffers[i],blockOffset,blockLength);
       bytesRead += blockLength;
-      fte.seekPtr += blockLength;
-
-      //SysLib.cout("bytes read: " + Integer.toString(bytesRead) + "\n");
-      //SysLib.cout("seekptr   : " + Integer.toString(fte.seekPtr) + "\n");
     }
-    
-    //FSTest.printData(output);
 
     return bytesRead;
   }
@@ -234,81 +616,339 @@ public class FileSystem
    * @param  : fte : FileTableEntry : the file table entry to write into
    * @param  : output : byte[] : the byte array to get the data from
    *
-   * writes to a file
+   * writes to a file, starting at the entry's seek pointer (and moves it
+   * past what was written)
    *
    * the FileTableEntry is extracted from this thread's TCB by the kernel
    */
   public static int write(FileTableEntry fte, byte[] output)
+  {
+    return write(fte, output, 0, output.length);
+  }
+
+  /*
+   * write
+   *
+   * @param  : fte : FileTableEntry : the file table entry to write into
+   * @param  : output : byte[] : the byte array to get the data from
+   * @param  : off : int : where in the array the data starts
+   * @param  : len : int : how many bytes to write
+   * @return : int : how many bytes were written
+   *
+   * same as above, from part of the array
+   */
+  public static int write(FileTableEntry fte, byte[] output, int off, int len)
+  {
+    if(!inBounds(output, off, len))
+    {
+      return Kernel.ERROR;
+    }
+    return write(fte, ByteBuffer.wrap(output, off, len));
+  }
+
+  /*
+   * write
+   *
+   * @param  : fte : FileTableEntry : the file table entry to write into
+   * @param  : output : ByteBuffer : the data (from its position up to its
+   *                                 limit)
+   * @return : int : how many bytes were written (the buffer's position
+   *                 moves past them)
+   *
+   * same as above, from a ByteBuffer (which can be a direct one)
+   */
+  public static int write(FileTableEntry fte, ByteBuffer output)
   {
     // writing should fail if
     // - the FileTableEntry is null
     // - the FileTableEntry's inode is null
     // - the file is open as r
-    if(fte == null || fte.inode == null || fte.Mode.equals("r"))
+    // - there's no data
+    if(!canWrite(fte) || output == null)
     {
       return Kernel.ERROR;
     }
+    if(!output.hasRemaining())
+    {
+      return 0;
+    }
 
-    Inode inode = fte.inode;
-    byte[] buffer = new byte[Disk.blockSize];
-
-    int bytesWritten = 0;
-    int block = 0;
-    int blockLength = 0;
-    int address = 0;
-    while(bytesWritten < output.length)
+    // nobody else can read or write the file while its length and blocks
+    // are changing
+    int bytesWritten;
+    ReentrantReadWriteLock lock = fte.inode.getLock();
+    lock.writeLock().lock();
+    try
     {
-      // if we hit the end of the file, allocate a new block for it
-      if(fte.seekPtr >= inode.length)
+      // another entry may have appended since this one last wrote, so an
+      // append goes at wherever the end is now
+      if(fte.appending)
       {
-        //SysLib.cout("allocating new block for inode\n");
-        allocateBlock(inode);
+        fte.seekPtr = fte.inode.getLength();
       }
+      bytesWritten = writeAt(fte, fte.seekPtr, output);
+
+      // update the seek pointer
+      fte.seekPtr += bytesWritten;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+
+    commitIfDue();
+    return bytesWritten;
+  }
+
+  /*
+   * pwrite (positional write)
+   *
+   * @param  : fte : FileTableEntry : the file table entry to write into
+   * @param  : offset : int : where in the file to start writing (it can't be
+   *                          past the end, files don't have holes)
+   * @param  : output : byte[] : the byte array to get the data from
+   * @return : int : how many bytes were written
+   *
+   * writes to a file without using or moving the seek pointer
+   */
+  public static int pwrite(FileTableEntry fte, int offset, byte[] output)
+  {
+    return pwrite(fte, offset, output, 0, output.length);
+  }
+
+  /*
+   * pwrite (positional write)
+   *
+   * @param  : fte : FileTableEntry : the file table entry to write into
+   * @param  : offset : int : where in the file to start writing (it can't be
+   *                          past the end, files don't have holes)
+   * @param  : output : byte[] : the byte array to get the data from
+   * @param  : off : int : where in the array the data starts
+   * @param  : len : int : how many bytes to write
+   * @return : int : how many bytes were written
+   *
+   * same as above, from part of the array
+   */
+  public static int pwrite(FileTableEntry fte, int offset, byte[] output,
+                           int off, int len)
+  {
+    if(!inBounds(output, off, len))
+    {
+      return Kernel.ERROR;
+    }
+    return pwrite(fte, offset, ByteBuffer.wrap(output, off, len));
+  }
 
-      // calculate the block and actual address from the seekPtr
-      block = Inode.seekPointerToBlock(fte.seekPtr,fte.iNumber);
-      address = block * Disk.blockSize + fte.seekPtr % Disk.blockSize;
-      //SysLib.cout("inode = " + inode.toString() + "\n");
-      //SysLib.cout("addr  = " + Integer.toString(address) + "\n");
-      //SysLib.cout("block = " + Integer.toString(block)   + "\n");
-      SysLib.cread(block,buffer);
-      
-      // start by assuming we're writing the entire block into memory
-      blockLength = Disk.blockSize;
-
-      if(block * Disk.blockSize < address)
+  /*
+   * pwrite (positional write)
+   *
+   * @param  : fte : FileTableEntry : the file table entry to write into
+   * @param  : offset : int : where in the file to start writing (it can't be
+   *                          past the end, files don't have holes)
+   * @param  : output : ByteBuffer : the data (from its position up to its
+   *                                 limit)
+   * @return : int : how many bytes were written (the buffer's position
+   *                 moves past them)
+   *
+   * same as above, from a ByteBuffer
+   */
+  public static int pwrite(FileTableEntry fte, int offset, ByteBuffer output)
+  {
+    if(!canWrite(fte) || offset < 0 || output == null)
+    {
+      return Kernel.ERROR;
+    }
+    if(!output.hasRemaining())
+    {
+      return 0;
+    }
+
+    int bytesWritten;
+    ReentrantReadWriteLock lock = fte.inode.getLock();
+    lock.writeLock().lock();
+    try
+    {
+      if(offset > fte.inode.getLength())
       {
-        // we're starting somewhere in the middle of the block
-        // subtract the distance from the beginning of the block to the address
-        blockLength -= address - (block * Disk.blockSize);
+        return Kernel.ERROR;
       }
-      if( (block+1) * Disk.blockSize > address + output.length - bytesWritten)
+      bytesWritten = writeAt(fte, offset, output);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+
+    commitIfDue();
+    return bytesWritten;
+  }
+
+  /*
+   * canWrite
+   *
+   * @param  : fte : FileTableEntry : a file table entry
+   * @return : boolean : whether it's an open file that can be written
+   */
+  private static boolean canWrite(FileTableEntry fte)
+  {
+    return fte != null && fte.inode != null && fte.writable;
+  }
+
+  /*
+   * writeAt
+   *
+   * @param  : fte : FileTableEntry : the file to write into (its inode's
+   *                                  write lock is held)
+   * @param  : offset : int : where in the file to start writing
+   * @param  : output : ByteBuffer : the data
+   * @return : int : how many bytes were written
+   *
+   * does the actual writing for every kind of write and pwrite, and grows
+   * the file if it goes past the end
+   */
+  private static int writeAt(FileTableEntry fte, int offset, ByteBuffer output)
+  {
+    Inode inode = fte.inode;
+
+    // if the write goes past the blocks we have, allocate new ones for it,
+    // all at once so they can be one contiguous run
+    // (anything from oldBlocks onward is brand new and has nothing to keep)
+    int end = offset + output.remaining();
+    BlockMap map = inode.getBlockMap();
+    int oldBlocks = map.size();
+    int needed = (end + Disk.blockSize - 1) / Disk.blockSize - oldBlocks;
+    if(needed > 0 && allocateBlocks(inode, needed) < needed)
+    {
+      // the inode or the disk ran out of room, so write as much as fits
+      end = Math.min(end, map.size() * Disk.blockSize);
+    }
+    if(map.size() != oldBlocks)
+    {
+      // new block pointers need saving
+      Inode.markDirty(fte.iNumber);
+    }
+
+    int toWrite = end - offset;
+    if(toWrite <= 0)
+    {
+      return 0;
+    }
+
+    // find every block the write touches up front
+    int firstBlock = offset / Disk.blockSize;
+    int count = (end - 1) / Disk.blockSize - firstBlock + 1;
+    int[] blocks = mapBlocks(inode, firstBlock, count);
+    byte[][] buffers = new byte[count][Disk.blockSize];
+
+    // only read the blocks that have data we need to keep, which is an old
+    // block we're only writing part of (at most the first and the last)
+    int[] readBlocks = new int[2];
+    byte[][] readBuffers = new byte[2][];
+    int reads = 0;
+    for(int i=0; i<count; i += Math.max(1, count - 1))
+    {
+      int blockStart = (firstBlock + i) * Disk.blockSize;
+      int writeStart = Math.max(offset, blockStart);
+      int writeEnd   = Math.min(end, blockStart + Disk.blockSize);
+      int dataEnd    = Math.min(inode.getLength(), blockStart + Disk.blockSize);
+      if(firstBlock + i < oldBlocks &&
+         (writeStart > blockStart || writeEnd < dataEnd))
       {
-        // we're ending before the end of the block
-        // subtract the distance from where we'll run out of space
-        // to the end of the block
-        blockLength -= ((block+1) * Disk.blockSize)
-                     - (address + output.length - bytesWritten);
+        readBlocks[reads]  = blocks[i];
+        readBuffers[reads] = buffers[i];
+        reads++;
       }
+    }
+    if(reads > 0)
+    {
+      creadv(reads, readBlocks, readBuffers);
+    }
 
-      // copy from the output to the buffer
-      System.arraycopy(output,bytesWritten,
-                       buffer,fte.seekPtr % Disk.blockSize,blockLength);
-      // write to the disc
-      SysLib.cwrite(block,buffer);
+    int bytesWritten = 0; // the running total number of bytes written
+    int blockOffset = 0;  // where in the block we start writing
+    int blockLength = 0;  // the length of the segment we're writing
+    for(int i=0; i<count; i++)
+    {
+      blockOffset = (offset + bytesWritten) % Disk.blockSize;
+      blockLength = Math.min(Disk.blockSize - blockOffset,
+                             toWrite - bytesWritten);
 
-      // update the total bytes read and the seek pointer
+      // copy from the output to the buffer
+      output.get(buffers[i],blockOffset,blockLength);
       bytesWritten += blockLength;
-      fte.seekPtr += blockLength;
+    }
+
+    // write them all back to the disc at once
+    cwritev(count, blocks, buffers);
+
+    // update the length of the inode if the file grew
+    if(offset + bytesWritten > inode.getLength())
+    {
+      inode.setLength(offset + bytesWritten);
+      Inode.markDirty(fte.iNumber);
+    }
+
+    return bytesWritten;
+  }
 
-      // update the length of the inode
-      if(fte.seekPtr > inode.length)
+  /*
+   * mapBlocks
+   *
+   * @param  : inode : Inode : the inode the blocks belong to
+   * @param  : first : int : the index (in the file) of the first block
+   * @param  : count : int : how many blocks to look up
+   * @return : int[] : the disk block numbers, in file order
+   *
+   * translates a range of file blocks into disk blocks, a whole extent at
+   * a time, using the inode's block map (no disk reads)
+   */
+  private static int[] mapBlocks(Inode inode, int first, int count)
+  {
+    BlockMap map = inode.getBlockMap();
+    int[] blocks = new int[count];
+    int i = 0;
+    while(i < count)
+    {
+      int block = map.get(first + i);
+      int run = Math.min(map.runLength(first + i), count - i);
+      for(int j=0; j<run; j++)
       {
-        inode.length = fte.seekPtr;
+        blocks[i++] = block + j;
       }
     }
+    return blocks;
+  }
 
-    return bytesWritten;
+  /*
+   * creadv
+   *
+   * @param  : count : int : the number of blocks to read
+   * @param  : blocks : int[] : the block numbers to read
+   * @param  : buffers : byte[][] : where to put each block
+   * @return : int : Kernel.OK or Kernel.ERROR
+   *
+   * reads a batch of blocks through the cache with one kernel call
+   */
+  public static int creadv(int count, int[] blocks, byte[][] buffers)
+  {
+    return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CREADV, count,
+                            new Object[] {blocks, buffers});
+  }
+
+  /*
+   * cwritev
+   *
+   * @param  : count : int : the number of blocks to write
+   * @param  : blocks : int[] : the block numbers to write
+   * @param  : buffers : byte[][] : the data for each block
+   * @return : int : Kernel.OK or Kernel.ERROR
+   *
+   * writes a batch of blocks through the cache with one kernel call
+   */
+  public static int cwritev(int count, int[] blocks, byte[][] buffers)
+  {
+    return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CWRITEV, count,
+                            new Object[] {blocks, buffers});
   }
 
   /*
@@ -324,9 +964,9 @@ public class FileSystem
   public static FileTableEntry open(String filename, String mode)
   {
     FileTableEntry retval = filetable.fretrieve(filename,mode);
-    // sync to save the changes to the directory and filetable
+    // save the changes to the directory and inodes (if there were any)
     // in case a later operation crashes without syncing
-    sync();
+    commit(false);
     return retval;
   }
 
@@ -340,7 +980,12 @@ public class FileSystem
    */
   public static boolean close(FileTableEntry fte)
   {
-    return filetable.ffree(fte); 
+    if(!filetable.ffree(fte))
+    {
+      return false;
+    }
+    commit(true);
+    return true;
   }
 
   /*
@@ -366,6 +1011,31 @@ public class FileSystem
       return -1;
     }
 
+    // the length can't change while we're looking at it
+    ReentrantReadWriteLock lock = fte.inode.getLock();
+    lock.readLock().lock();
+    try
+    {
+      return seekLocked(fte,offset,whence);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /*
+   * seekLocked
+   *
+   * @param  : fte : FileTableEntry : the file table entry to move
+   * @param  : offset : int : the offset to change the seek pointer by
+   * @param  : whence : int : where to set the pointer from
+   * @return : int : the new value of the seek pointer
+   *
+   * does the actual seek (with the inode's lock held)
+   */
+  private static int seekLocked(FileTableEntry fte, int offset, int whence)
+  {
     switch(whence)
     {
       case SEEK_SET:
@@ -380,7 +1050,7 @@ public class FileSystem
 
       case SEEK_END:
         // set it from the end
-        fte.seekPtr = fte.inode.length + offset;
+        fte.seekPtr = fte.inode.getLength() + offset;
         break;
 
       default:
@@ -394,19 +1064,86 @@ public class FileSystem
     }
 
     // if it's after the end, set it to the end
-    if(fte.seekPtr > fte.inode.length)
+    if(fte.seekPtr > fte.inode.getLength())
     {
-      fte.seekPtr = fte.inode.length;
+      fte.seekPtr = fte.inode.getLength();
     }
 
     // return the new seek pointer
     return fte.seekPtr;
   }
 
+  /*
+   * fallocate
+   *
+   * @param  : fte : FileTableEntry : the file to allocate space for
+   * @param  : size : int : how many bytes the file is expected to grow to
+   * @return : int : Kernel.OK, or Kernel.ERROR if the space couldn't all be
+   *                 allocated
+   *
+   * a preallocation hint: reserves the blocks for the first (size) bytes of
+   * the file up front, in as few contiguous runs as possible, without
+   * changing the file's length (later writes just use the blocks)
+   */
+  public static int fallocate(FileTableEntry fte, int size)
+  {
+    if(!canWrite(fte) || size < 0)
+    {
+      return Kernel.ERROR;
+    }
+
+    int retval = Kernel.OK;
+    ReentrantReadWriteLock lock = fte.inode.getLock();
+    lock.writeLock().lock();
+    try
+    {
+      BlockMap map = fte.inode.getBlockMap();
+      int needed = (size + Disk.blockSize - 1) / Disk.blockSize - map.size();
+      if(needed > 0)
+      {
+        int allocated = allocateBlocks(fte.inode, needed);
+        if(allocated > 0)
+        {
+          Inode.markDirty(fte.iNumber);
+        }
+        if(allocated < needed)
+        {
+          retval = Kernel.ERROR;
+        }
+      }
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+
+    commitIfDue();
+    return retval;
+  }
+
+  /*
+   * mkdir
+   *
+   * @param  : path : String : the path of the new directory
+   * @return : int : the success value of the operation
+   *
+   * makes an empty directory, the directory it goes in has to exist already
+   */
+  public static int mkdir(String path)
+  {
+    if(directory.imkdir(path) == -1)
+    {
+      return Kernel.ERROR;
+    }
+    commit(false);
+    return Kernel.OK;
+  }
+
   /*
    * delete
    *
-   * @param  : filename : String : the filename to delete
+   * @param  : filename : String : the filename to delete (a path, which can
+   *                               also be an empty directory)
    * @return : int : the success value of the operation
    *
    * deletes the file
@@ -427,22 +1164,10 @@ public class FileSystem
       return Kernel.ERROR;
     }
 
-    // we need the entire FileTableEntry
-    FileTableEntry fte = filetable.getByInum(inum);
-
-    if(fte == null)
-    {
-      // if fte is null then it wasn't in the filetable, therefore it's not open
-      // just delete it
-      Inode.deleteInode(inum);
-      return Kernel.OK;
-    }
-    else
-    {
-      // it's open somewhere, just set it to deleted
-      fte.inode.flag = Inode.FLAG_DELETED;
-      //return Kernel.ERROR;
-    }
+    // delete it now if it's not open, otherwise the last close does (the
+    // file table does the check, so a close can't sneak in between)
+    filetable.idelete(inum);
+    commit(false);
     return Kernel.OK;
   }
 
@@ -451,7 +1176,7 @@ public class FileSystem
    *
    * @return : void
    *
-   * this is just a wrapper for Directory::print()
+   * this is just a wrapper for DirectoryTree::print() (which lists /)
    */
   public static void listDirectory()
   {
@@ -483,22 +1208,27 @@ public class FileSystem
   public void InodeTest()
   {
     // setup an inode
-    Inode n0 = new Inode((short)0);
+    Inode n0 = Inode.getInode(0);
 
-    n0.length = 21;
-    n0.direct = new short[] {20,22,24,26,28, 30,31,32,33,34,35};
-    n0.indirect = 100;
+    n0.setLength(21);
+    InodeFormat format = Inode.getFormat();
+    int[] direct = new int[] {20,22,24,26,28, 30,31,32,33,34,35};
+    for(int i=0; i<format.directs; i++)
+    {
+      n0.setDirect(i,direct[i]);
+    }
+    n0.setIndirect(1,100);
 
     // write an indirect block
     byte[] buffer = new byte[Disk.blockSize];
-    for(int i=0; i<Disk.blockSize; i+=2)
+    for(int i=0; i<format.perIndirect; i++)
     {
-      shortToBytes(i,(short)((i/2)+150),buffer);
+      format.writePointer(i * format.pointerSize,i+150,buffer);
     }
-    SysLib.cwrite(n0.indirect,buffer);
+    SysLib.cwrite(n0.getIndirect(1),buffer);
 
     // save the inode to disc
-    n0.toDisk((short)0);
+    n0.toDisk();
 
     SysLib.cout("Inode 0\n" + n0.toString() + "\n");
 
@@ -516,145 +1246,278 @@ public class FileSystem
   /*
    * getNextFree
    *
-   * @return : short : the blockId for the next fresh free block
+   * @return : int : the blockId for the next fresh free block, or -1 if
+   *                 the disk is full
    *
-   * pops the next free block from the list and returns it
+   * takes the next free block from the superblock's bitmap (no disk I/O)
    */
-  public static short getNextFree()
+  public static int getNextFree()
   {
-    int retval = superblock.freeList;
-    // get the next free's next (which is the new next free)
-    //SysLib.cout("free block = "+Integer.toString(superblock.freeList) + "\n");
-    byte[] blockData = new byte[Disk.blockSize];
-    SysLib.cread(superblock.freeList,blockData);
-
-    // the next is stored in the first byte
-    superblock.freeList = FileSystem.bytesToInt(0,blockData);
-
-    return (short)retval;
+    return superblock.getFreeBlock();
   }
 
   /*
-   * allocateBlock
+   * allocateBlocks
    *
-   * @param  : inode : Inode : the inode to allocate a new block to
-   * @return : boolean : whether or not it worked
+   * @param  : inode : Inode : the inode to allocate new blocks to
+   * @param  : n : int : how many blocks to add to the end of the file
+   * @return : int : how many blocks actually got added
    *
-   * gets the next free block from the free list and gives it to the inode
+   * tries to get all (n) blocks as one contiguous run right after the file's
+   * last block, so big files stay in one piece on the disk, if there isn't a
+   * run that long it falls back to one block at a time (each one as close
+   * to the last as possible)
    */
-  private static boolean allocateBlock(Inode inode)
+  private static int allocateBlocks(Inode inode, int n)
   {
     // it failed if inode is null
     if(inode == null)
     {
-      return false;
+      return 0;
     }
 
-    byte[] blockData = new byte[Disk.blockSize];
-    short block = getNextFree();
+    BlockMap map = inode.getBlockMap();
+    int goal = map.lastBlock() == -1 ? -1 : map.lastBlock() + 1;
 
-    // add it to the first empty direct slot
-    for(int i=0; i<Inode.directSize; i++)
+    int start = superblock.getFreeBlocks(n, goal);
+    if(start != -1)
     {
-      if(inode.direct[i] == -1)
+      for(int i=0; i<n; i++)
       {
-        inode.direct[i] = block;
-        return true;
+        if(!addBlock(inode, start + i))
+        {
+          // the inode is full, give back the rest of the run
+          superblock.returnBlocks(start + i, n - i);
+          return i;
+        }
       }
+      return n;
     }
 
-    // that didn't work; add it to an indirect one
+    // no run that long, so do it one block at a time
+    for(int i=0; i<n; i++)
+    {
+      goal = map.lastBlock() == -1 ? -1 : map.lastBlock() + 1;
+      int block = superblock.getFreeBlocks(1, goal);
+      if(block == -1 && freePending())
+      {
+        // deleted files were still holding blocks, try again
+        block = superblock.getFreeBlocks(1, goal);
+      }
+      if(block == -1)
+      {
+        // the disk is full
+        return i;
+      }
+      if(!addBlock(inode, block))
+      {
+        freeBlock(block);
+        return i;
+      }
+    }
+    return n;
+  }
+
+  /*
+   * addBlock
+   *
+   * @param  : inode : Inode : the inode to give the block to
+   * @param  : block : int : the (already allocated) block to give it
+   * @return : boolean : whether or not it worked (it fails if the inode is
+   *                     full, or there's no room for an indirect block)
+   *
+   * puts the block at the end of the file, in the next direct pointer if
+   * there's one left, otherwise in the first empty slot of the indirect
+   * tree, making any indirect blocks it needs on the way down
+   */
+  private static boolean addBlock(Inode inode, int block)
+  {
+    InodeFormat format = Inode.getFormat();
+    long index = inode.getBlockMap().size();  // where it goes in the file
+
+    // add it to the next direct slot
+    if(index < format.directs)
+    {
+      inode.setDirect((int)index,block);
+      inode.mapBlock(block);
+      return true;
+    }
 
-    // first, give it an indirect block if it doesn't already have one
-    if(inode.indirect == -1)
+    // that didn't work; find the level of indirection it belongs under, and
+    // where it goes inside that level
+    index -= format.directs;
+    int level = 1;
+    while(index >= format.span(level))
     {
-      // give it a free block
-      inode.indirect = getNextFree();
+      index -= format.span(level);
+      level++;
+      if(level > format.levels)
+      {
+        // the inode ran out of room
+        return false;
+      }
+    }
 
-      SysLib.cread(inode.indirect, blockData);
-      // the first short is the block number
-      shortToBytes(0,block,blockData);
-      for(int i=2; i<Disk.blockSize; i+=2)
+    // give it the top indirect block if it doesn't already have one (after
+    // the data block, so it's out of the way)
+    IndirectCache cache = inode.getIndirectCache();
+    int parent = inode.getIndirect(level);
+    int[] pointers;
+    if(parent == -1)
+    {
+      parent = superblock.getFreeBlocks(1, block + 1);
+      if(parent == -1)
       {
-        // all other blocks are -1
-        shortToBytes(i,(short)(-1),blockData);
+        return false;
       }
-      SysLib.cwrite(inode.indirect, blockData);
-      return true;
+      inode.setIndirect(level,parent);
+      Inode.markDirty(inode.Inumber);
+      pointers = cache.create(parent);
     }
     else
     {
-      // the block already exists, find the first -1 and write the block to it
-      SysLib.cread(inode.indirect, blockData);
-      for(int i=0; i<Disk.blockSize; i+=2)
+      pointers = cache.get(parent);
+    }
+
+    // walk down the tree, one indirect block per level (they're all in the
+    // cache after the first time, and only get written back on a flush)
+    for(int depth=level; depth>1; depth--)
+    {
+      long span = format.span(depth - 1);  // data blocks under each slot
+      int slot = (int)(index / span);
+      index %= span;
+
+      int child = pointers[slot];
+      if(child == -1)
       {
-        if(bytesToShort(i,blockData) == -1)
+        child = superblock.getFreeBlocks(1, block + 1);
+        if(child == -1)
         {
-          shortToBytes(i,block,blockData);
-          SysLib.cwrite(inode.indirect, blockData);
-          return true;
+          return false;
         }
+        pointers[slot] = child;
+        cache.markDirty(parent);
+        pointers = cache.create(child);
+      }
+      else
+      {
+        pointers = cache.get(child);
       }
+      parent = child;
     }
 
-    // if it gets to here the inode ran out of room
-    return false;
+    // the bottom level points at the data blocks
+    pointers[(int)index] = block;
+    cache.markDirty(parent);
+    inode.mapBlock(block);
+    return true;
   }
 
   /*
    * freeBlock
    *
-   * @param  : block : short : the block number to add to the free list
+   * @param  : block : int : the block number to mark as free
    * @return : void
    *
-   * adds a block to the free list
+   * gives a block back to the superblock's bitmap (no disk I/O)
    */
-  public static void freeBlock(short block)
+  public static void freeBlock(int block)
   {
-    byte[] buffer = new byte[Disk.blockSize];
-    intToBytes(0,superblock.freeList,buffer);
-    SysLib.cwrite(block,buffer);
-    superblock.freeList = block;
+    superblock.returnBlock(block);
   }
 
   /*
    * freeInode
    *
-   * @param  : inode : Inode : the inode to allocate a new block to
+   * @param  : inode : Inode : the inode to free the blocks of
    * @return : void
    * 
-   * frees all the blocks associated with this inode
+   * frees all the blocks associated with this inode, or queues it up to be
+   * freed later if deferred freeing is on
    */
   public static void freeInode(Inode inode)
   {
-    // free the direct blocks
-    for(int i=0; i<Inode.directSize; i++) 
+    // the map goes away with the inode, so the indirect blocks can go in
+    // with the data blocks
+    BlockMap map = inode.getBlockMap();
+    inode.addIndirectBlocks(map);
+
+    if(deferFree)
     {
-      if(inode.direct[i] != -1)
-      {
-        freeBlock(inode.direct[i]);
-      }
+      pendingFree.add(map);
+      return;
+    }
+    releaseBlocks(map);
+  }
+
+  /*
+   * releaseBlocks
+   *
+   * @param  : map : BlockMap : the blocks to free
+   * @return : void
+   *
+   * gives every block in the map back to the bitmap, a whole extent at a
+   * time (this is all in memory)
+   */
+  private static void releaseBlocks(BlockMap map)
+  {
+    for(int e=0; e<map.extents(); e++)
+    {
+      superblock.returnBlocks(map.extentStart(e), map.extentLength(e));
     }
+  }
 
-    // if there's an indirect block
-    if(inode.indirect != -1)
+  /*
+   * setDeferredFree
+   *
+   * @param  : defer : boolean : whether delete should leave freeing the
+   *                             blocks until later
+   * @return : void
+   *
+   * with deferred freeing on, delete returns right away and the blocks are
+   * given back on the next sync (or as soon as an allocation needs them),
+   * turning it off frees everything that's waiting
+   */
+  public static void setDeferredFree(boolean defer)
+  {
+    deferFree = defer;
+    if(!defer)
     {
-      // read the indirect block
-      byte[] blockData = new byte[Disk.blockSize];
-      SysLib.cread(inode.indirect,blockData);
+      freePending();
+    }
+  }
 
-      // free all the block numbers in the indirect block
-      for(int i=0; i<Disk.blockSize; i+=2)
+  /*
+   * freeBlocks
+   *
+   * @return : int : how many data blocks are free (blocks waiting to be
+   *                 freed don't count)
+   */
+  public static int freeBlocks()
+  {
+    return superblock.freeBlocks();
+  }
+
+  /*
+   * freePending
+   *
+   * @return : boolean : whether there was anything to free
+   *
+   * frees the blocks of every deleted inode waiting on the deferred list
+   */
+  private static boolean freePending()
+  {
+    synchronized(pendingFree)
+    {
+      if(pendingFree.isEmpty())
       {
-        short block = bytesToShort(i,blockData);
-        if(block != -1)
-        {
-          freeBlock(block);
-        }
+        return false;
       }
-
-      // free the indirect block itself
-      freeBlock(inode.indirect);
+      while(!pendingFree.isEmpty())
+      {
+        releaseBlocks(pendingFree.remove(pendingFree.size() - 1));
+      }
+      return true;
     }
   }
 
@@ -1,4 +1,5 @@
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * FileTable
@@ -7,26 +8,57 @@ import java.util.Vector;
  * set is the union of all thread's set
  *
  * it only stores currently open files
+ *
+ * every open gets its own entry (with its own seek pointer and mode), the
+ * inode underneath is shared, so two threads reading the same file don't
+ * move each other's place in it, the table itself just counts how many
+ * entries each inode has (in an array indexed by inode number), which is
+ * all it needs to know when the last one is closed or a file is deleted
+ * while it's open
+ *
+ * there's no lock around the whole table, each slot belongs to one of a
+ * fixed set of lock stripes (by inumber), so opening and closing different
+ * files mostly doesn't wait on anything
  */
 public class FileTable
 {
-  private Vector<FileTableEntry> table; // the actual entity of this table
-  private Directory dir;                // the root directory
+  private final static int lockStripes = 16; // must be a power of 2
+
+  private int[] opens;            // how many entries each inode has, by inum
+  private AtomicInteger open;     // how many entries there are in all
+
+  // how many deletes there have been, and what that was when each inode was
+  // last deleted (so an open can tell if its file went away after it looked
+  // it up, even if the inode has been used for a new file since)
+  private AtomicInteger unlinks;
+  private int[] unlinked;
+  private ReentrantLock[] stripes;
+  private DirectoryTree dir;      // the directory tree
 
   /*
    * constructor
    *
-   * @param : directory : Directory : the directory we're using
-   *                                  normally this is just the root directory
-   *                                  but in this case it's the only one
+   * @param : directory : DirectoryTree : the directory tree we're using,
+   *                                      files are opened by their path
+   * @param : count : int : the maximum number of files the file system can
+   *                        support (the table has a slot for each)
    */
-  public FileTable(Directory directory)
+  public FileTable(DirectoryTree directory, int count)
   {
-    // instantiates the file structure table
-    table = new Vector<FileTableEntry>(); 
+    // instantiates the file structure table (inumbers never go past the
+    // inode count, so it never needs to grow)
+    opens = new int[count];
+    open = new AtomicInteger(0);
+    unlinks = new AtomicInteger(0);
+    unlinked = new int[count];
+    stripes = new ReentrantLock[lockStripes];
+    for(int i=0; i<lockStripes; i++)
+    {
+      stripes[i] = new ReentrantLock();
+    }
 
     // receives a reference from the directory
-    dir = directory;              
+    dir = directory;
   }
 
   /*
@@ -36,9 +68,27 @@ public class FileTable
    *
    * clears the table
    */
-  public synchronized void clear()
+  public void clear()
   {
-    table.clear();
+    for(int i=0; i<lockStripes; i++)
+    {
+      stripes[i].lock();
+    }
+    try
+    {
+      for(int i=0; i<opens.length; i++)
+      {
+        opens[i] = 0;
+      }
+      open.set(0);
+    }
+    finally
+    {
+      for(int i=0; i<lockStripes; i++)
+      {
+        stripes[i].unlock();
+      }
+    }
   }
 
   /*
@@ -46,88 +96,82 @@ public class FileTable
    *
    * @param  : filename : String : the filename to retrieve
    * @param  : mode : String : the mode to (maybe) open the file with
-   * @return : FileTableEntry : the file entry associated with this file
+   * @return : FileTableEntry : a new file entry for this file
    *
-   * retrieves a file entry from the table
+   * opens a file, the entry starts at the beginning of the file (or the end,
+   * for a), whether or not someone else has it open
    */
-  public synchronized FileTableEntry fretrieve(String filename, String mode)
+  public FileTableEntry fretrieve(String filename, String mode)
   {
-    // get the inum for this file
-    short inum = dir.iretrieve(filename,mode);
+    FileTableEntry retval = open(filename,mode);
 
-    // if we get -1, there is no such entry (and we couldn't make one)
-    if(inum == -1)
+    // if we get null, there is no such entry (and we couldn't make one)
+    if(retval == null)
     {
       SysLib.cout("iretrieve gives back -1\n");
-      return null;
     }
-
-    // search for it
-    for(int i=0; i<table.size(); i++)
-    {
-      if(table.get(i).iNumber == inum) 
-      {
-        // get the entry from the table
-        FileTableEntry retval = table.get(i);
-        // a new thread is accessing it, so increment the count
-        retval.count++;
-
-        // don't allow for deleted files to be returned
-        if(retval.inode.flag == Inode.FLAG_DELETED)
-        {
-          return null;
-        }
-
-        // set the seek pointer correctly
-        if(mode.equals("a"))
-        {
-          retval.seekPtr = retval.inode.length;
-        }
-        else
-        {
-          retval.seekPtr = 0;
-        }
-
-        // return it
-        return retval;
-      }
-    }
-
-    // make a new entry since it wasn't found
-    return falloc(filename,mode);
+    return retval;
   }
 
   /*
-   * indexOf
+   * isOpen
    *
-   * @param  : f : FileTableEntry : the entry to get the index of
-   * @return : int : the index of f
-   *
-   * this is just a wrapper for table.indexOf()
+   * @param  : inum : int : an inode number
+   * @return : boolean : whether any entry has it open
    */
-  public synchronized int indexOf(FileTableEntry f)
+  public boolean isOpen(int inum)
   {
-    return table.indexOf(f);
+    if(inum < 0 || inum >= opens.length)
+    {
+      return false;
+    }
+
+    ReentrantLock stripe = stripe(inum);
+    stripe.lock();
+    try
+    {
+      return opens[inum] > 0;
+    }
+    finally
+    {
+      stripe.unlock();
+    }
   }
 
   /*
-   * getByInum
+   * idelete (inode delete)
    *
-   * @param  : inum : int : the inode numberto search for
-   * @return : FileTableEntry : the entry with the inode num we're looking for
+   * @param  : inum : short : the inode number of a file that was just taken
+   *                          out of its directory
+   * @return : void
    *
-   * finds the FileTableEntry with a specific inode number and returns it
+   * deletes the inode if the file isn't open, otherwise marks it deleted so
+   * the last close deletes it (with the stripe locked, so a close can't
+   * happen between checking and marking)
    */
-  public synchronized FileTableEntry getByInum(int inum)
+  public void idelete(short inum)
   {
-    for(int i=0; i<table.size(); i++)
+    ReentrantLock stripe = stripe(inum);
+    stripe.lock();
+    try
     {
-      if(table.get(i).iNumber == inum)
+      unlinked[inum] = unlinks.incrementAndGet();
+      if(opens[inum] == 0)
+      {
+        // it's not open, just delete it
+        Inode.deleteInode(inum);
+      }
+      else
       {
-        return table.get(i);
+        // it's open somewhere, just set it to deleted
+        Inode.getInode(inum).setFlag(Inode.FLAG_DELETED);
+        Inode.markDirty(inum);
       }
     }
-    return null;
+    finally
+    {
+      stripe.unlock();
+    }
   }
 
   /*
@@ -139,16 +183,69 @@ public class FileTable
    *
    * allocates a new file table entry and returns it
    */
-  public synchronized FileTableEntry falloc( String filename, String mode )
+  public FileTableEntry falloc( String filename, String mode )
   {
     // return nothing if we can't retrieve the inode
     // (we can't open one or make a new one with the mode)
-    short inum  = dir.iretrieve(filename,mode);
-    if(inum == -1)
+    return open(filename,mode);
+  }
+
+  /*
+   * open
+   *
+   * @param  : filename : String : the path of the file
+   * @param  : mode : String : the mode to open the file with
+   * @return : FileTableEntry : the new file entry, or null if there's no
+   *                            such file (and it couldn't be made)
+   *
+   * the lookup happens before the stripe is locked, so the file can be
+   * deleted in between (and a new file can even get the same inode), once
+   * we have the stripe a delete has to wait for us, so all that's left is
+   * to check the inode hasn't been deleted since the lookup started, if it
+   * has the lookup is done again (which finds the new file, makes one, or
+   * finds nothing)
+   */
+  private FileTableEntry open(String filename, String mode)
+  {
+    while(true)
     {
-      return null;
+      int before = unlinks.get();
+      short inum = dir.iretrieve(filename,mode);
+      if(inum == -1)
+      {
+        return null;
+      }
+
+      ReentrantLock stripe = stripe(inum);
+      stripe.lock();
+      try
+      {
+        // a file deleted since then can't be opened (even if it's still
+        // around because someone has it open)
+        if(unlinked[inum] - before <= 0)
+        {
+          return add(inum,mode);
+        }
+      }
+      finally
+      {
+        stripe.unlock();
+      }
     }
+  }
 
+  /*
+   * add
+   *
+   * @param  : inum : short : the inode number of the file
+   * @param  : mode : String : the mode to open the file with
+   * @return : FileTableEntry : the new file entry
+   *
+   * makes a new entry for the file and counts it (the caller has the slot's
+   * stripe locked)
+   */
+  private FileTableEntry add(short inum, String mode)
+  {
     // get the actual inode from the number
     Inode inode = Inode.getInode(inum);
 
@@ -156,7 +253,8 @@ public class FileTable
     FileTableEntry entry = new FileTableEntry(inode,inum,mode);
 
     // actually add it to the table
-    table.add(entry);
+    opens[inum]++;
+    open.incrementAndGet();
 
     return entry;
   }
@@ -167,32 +265,68 @@ public class FileTable
    * @param  : entry : FileTableEntry : the entry to free
    * @return : boolean : whether or not it worked
    *
-   * frees a file from the list if no more threads are using it
+   * frees an entry once no more threads are using it, and lets go of the
+   * file once it has no entries left
    */
-  public synchronized boolean ffree( FileTableEntry entry )
+  public boolean ffree( FileTableEntry entry )
   {
-    // it should fail if entry is null or it's not in the table
-    if(entry == null || table.indexOf(entry) == -1)
+    if(entry == null || entry.inode == null)
     {
       return false;
     }
 
-    // save the corresponding inode to disk
-    entry.inode.toDisk(entry.iNumber);
+    ReentrantLock stripe = stripe(entry.iNumber);
+    stripe.lock();
+    try
+    {
+      return release(entry);
+    }
+    finally
+    {
+      stripe.unlock();
+    }
+  }
+
+  /*
+   * release
+   *
+   * @param  : entry : FileTableEntry : the entry to free
+   * @return : boolean : whether or not it worked
+   *
+   * does the actual work of ffree (with the entry's stripe locked)
+   */
+  private boolean release(FileTableEntry entry)
+  {
+    // it should fail if it was already closed
+    if(entry.count <= 0)
+    {
+      return false;
+    }
 
     // a thread stopped using this, so decrement the count
     entry.count--;
+    if(entry.count > 0)
+    {
+      return true;
+    }
 
-    // if ALL threads stopped using this, remove it entirely
-    if(entry.count <= 0)
+    // that was the last thread using the entry
+    open.decrementAndGet();
+    opens[entry.iNumber]--;
+
+    // if ALL entries for the file are gone, let go of it entirely
+    if(opens[entry.iNumber] == 0)
     {
-      table.remove(entry);
-      
-      // if it's been set to delete, delete it
-      if(entry.inode.flag == Inode.FLAG_DELETED)
+      // if it's been set to delete, delete it, otherwise save its indirect
+      // blocks (nobody has it open to append to anymore)
+      if(entry.inode.getFlag() == Inode.FLAG_DELETED)
       {
         Inode.deleteInode(entry.iNumber);
       }
+      else
+      {
+        entry.inode.releaseIndirectCache();
+      }
     }
     return true;
   }
@@ -204,8 +338,19 @@ public class FileTable
    *
    * fempty returns whether or not the table is empty
    */
-  public synchronized boolean isEmpty()
+  public boolean isEmpty()
+  {
+    return open.get() == 0;
+  }
+
+  /*
+   * stripe
+   *
+   * @param  : inum : int : an inode number
+   * @return : ReentrantLock : the lock for its slot
+   */
+  private ReentrantLock stripe(int inum)
   {
-    return table.isEmpty();
+    return stripes[inum & (lockStripes - 1)];
   }
 }
@@ -3,18 +3,24 @@
  *
  * a single entry for the FileTable (which stores open files), and for TCBs
  * (which I didn't write)
+ *
+ * there's one for every time a file is opened, so each one has its own
+ * seek pointer and mode, several entries can share one inode
  */
 public class FileTableEntry
 {
   public int seekPtr;           // where in the file reading and writing is
   public final Inode inode;     // the inode associated with the file
   public final short iNumber;   // the inode number for this file
-  public int count;             // the number of threads this file is open in
+  public int count;             // the number of threads using this entry
   public final String Mode;     // the mode the file is open in
                                 // could be r  (read)
                                 //          w  (write)
                                 //          w+ (read and write)
                                 //          a  (append, start at the end)
+  public final boolean readable; // whether the mode allows reading
+  public final boolean writable; // whether the mode allows writing
+  public final boolean appending; // whether every write goes at the end
 
   /*
    * constructor
@@ -28,6 +34,9 @@ public class FileTableEntry
     iNumber = -1;
     count = 1;
     Mode = "";
+    readable = false;
+    writable = false;
+    appending = false;
   }
 
   /*
@@ -45,11 +54,16 @@ public class FileTableEntry
     count = 1;
     Mode = m;
 
+    // worked out once here, so reads and writes don't compare strings
+    readable = !Mode.equals("w") && !Mode.equals("a");
+    writable = !Mode.equals("r");
+    appending = Mode.equals("a");
+
     // if mode is append ...
-    if(Mode.equals("a")) 
+    if(appending)
     {
       // ... seekPtr points to the end of the file
-      seekPtr = inode.length;
+      seekPtr = inode.getLength();
     }
   }
 }
@@ -0,0 +1,142 @@
+import java.util.HashMap;
+import java.util.Iterator;
+
+/*
+ * IndirectCache
+ *
+ * decoded copies of one inode's indirect blocks, so walking the pointer tree
+ * (to map the file, add a block to the end of it or free it) only reads each
+ * indirect block from the disk once
+ *
+ * blocks that change are only written back when the inode's cache is
+ * flushed (on sync, and when the last file table entry for the inode is
+ * closed), so appending a run of blocks writes the indirect block once
+ * instead of once per block
+ *
+ * the next free slot doesn't need a cursor or a scan, it's always the file's
+ * block count (blocks are only ever added to the end)
+ *
+ * it's synchronized on itself, readers of the file can be filling it in at
+ * the same time (building the block map), and a sync can flush it while
+ * the file is being written
+ */
+public class IndirectCache
+{
+  private HashMap<Integer,int[]> blocks;  // block number -> its pointers
+  private HashMap<Integer,int[]> dirty;   // the ones that changed
+
+  /*
+   * constructor
+   *
+   * makes an empty cache
+   */
+  public IndirectCache()
+  {
+    blocks = new HashMap<Integer,int[]>();
+    dirty  = new HashMap<Integer,int[]>();
+  }
+
+  /*
+   * get
+   *
+   * @param  : block : int : an indirect block
+   * @return : int[] : its pointers (-1 for an empty slot), read from the
+   *                   disk the first time
+   */
+  public synchronized int[] get(int block)
+  {
+    int[] retval = blocks.get(block);
+    if(retval != null)
+    {
+      return retval;
+    }
+
+    InodeFormat format = Inode.getFormat();
+    byte[] buffer = new byte[Disk.blockSize];
+    SysLib.cread(block,buffer);
+
+    retval = new int[format.perIndirect];
+    for(int slot=0; slot<retval.length; slot++)
+    {
+      retval[slot] = format.readPointer(slot * format.pointerSize,buffer);
+    }
+    blocks.put(block,retval);
+    return retval;
+  }
+
+  /*
+   * create
+   *
+   * @param  : block : int : a block that was just allocated as an indirect
+   *                         block
+   * @return : int[] : its pointers, all -1 (it's dirty, so it gets written
+   *                   even if nothing is ever put in it)
+   */
+  public synchronized int[] create(int block)
+  {
+    int[] retval = new int[Inode.getFormat().perIndirect];
+    for(int slot=0; slot<retval.length; slot++)
+    {
+      retval[slot] = -1;
+    }
+    blocks.put(block,retval);
+    dirty.put(block,retval);
+    return retval;
+  }
+
+  /*
+   * markDirty
+   *
+   * @param  : block : int : an indirect block in the cache that changed
+   * @return : void
+   */
+  public synchronized void markDirty(int block)
+  {
+    dirty.put(block,blocks.get(block));
+  }
+
+  /*
+   * isDirty
+   *
+   * @return : boolean : whether anything needs writing back
+   */
+  public synchronized boolean isDirty()
+  {
+    return !dirty.isEmpty();
+  }
+
+  /*
+   * flush
+   *
+   * @return : void
+   *
+   * writes every changed indirect block back to the disk, all in one batch
+   */
+  public synchronized void flush()
+  {
+    if(dirty.isEmpty())
+    {
+      return;
+    }
+
+    InodeFormat format = Inode.getFormat();
+    int count = dirty.size();
+    int[] numbers = new int[count];
+    byte[][] buffers = new byte[count][Disk.blockSize];
+
+    Iterator<Integer> it = dirty.keySet().iterator();
+    for(int i=0; i<count; i++)
+    {
+      numbers[i] = it.next();
+      int[] pointers = dirty.get(numbers[i]);
+      for(int slot=0; slot<pointers.length; slot++)
+      {
+        format.writePointer(slot * format.pointerSize,pointers[slot],
+                            buffers[i]);
+      }
+    }
+
+    FileSystem.cwritev(count,numbers,buffers);
+    dirty.clear();
+  }
+}
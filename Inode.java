@@ -1,169 +1,376 @@
-import java.util.Vector;
-
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Inode
+ *
+ * a handle to one inode in the inode table
+ *
+ * the data itself lives in the InodeTable (one array per field), so an Inode
+ * object is just an inumber, it's cheap to make and two handles to the same
+ * inumber see the same data
+ *
+ * every inumber has its own read/write lock (getLock), reading a file takes
+ * the read side and anything that changes its length or blocks takes the
+ * write side, so any number of threads can read a file at once, and files
+ * don't get in each other's way at all
+ */
 public class Inode
 {
-  // for synchronization purposes, as inodes will be accessed by multiple
-  // concurrent threads
-
-  // Vector is synchronized while ArrayList is not, so this is safe for
-  // multi-threadded programs
-  public static Vector<Inode> Inodes = new Vector<Inode>();
+  // how the inodes are laid out on the disk, and the table every inode
+  // lives in
+  private static InodeFormat format = InodeFormat.CURRENT;
+  private static InodeTable table = new InodeTable(format,16);
 
   // design decisions
   public static final int inodeSize  = 32;  // an inode is 32 bytes
-  public static final int directSize = 11;  // number or direct pointers to
-                                            // disk blocks
   private static int maxCount = -1;         // maximum inodes the file
                                             // system can support
 
+  // which inodes changed since the last allToDisk (one bit per inumber),
+  // and how many inodes the count in the superblock block says there are
+  private static BitSet dirty = new BitSet();
+  private static int savedCount = 0;
+
+  // the empty slots in the table, as a stack, so allocating an inode never
+  // has to search for one (new slots come from the end of the table)
+  private static int[] freeSlots = new int[16];
+  private static int freeCount = 0;
+
+  // one lock per inumber (made by setMaxCount, inumbers never go past it)
+  private static ReentrantReadWriteLock[] locks =
+    new ReentrantReadWriteLock[0];
+
   // for the flag
-  public static final short FLAG_UNUSED  = 0;
-  public static final short FLAG_USED    = 1;
-  public static final short FLAG_DELETED = 2;
-  
-  // member variables
-  public int length;     // length of the file in bytes
-  public short count;    // number of file table entries pointing to this inode
-  public short flag;     // state of the inode
-  public short direct[] = new short[directSize]; // direct pointers to data
-  public short indirect; // indirect pointer
-
-  public static void setMaxCount(int i)
+  public static final short FLAG_UNUSED    = 0;
+  public static final short FLAG_USED      = 1;
+  public static final short FLAG_DELETED   = 2;
+  public static final short FLAG_DIRECTORY = 3;  // used, and it's a directory
+
+  // the inode this handle points at
+  public final short Inumber;
+
+  public static synchronized void setMaxCount(int i)
   {
     maxCount = i;
+    if(locks.length != i)
+    {
+      locks = new ReentrantReadWriteLock[i];
+      for(int j=0; j<i; j++)
+      {
+        locks[j] = new ReentrantReadWriteLock();
+      }
+    }
   }
 
   /*
-   * default constructor
+   * setMappedStore
+   *
+   * @param  : mapped : boolean : true to keep the inodes in an off-heap
+   *                              buffer laid out like the inode blocks,
+   *                              false for the plain arrays
+   * @return : void
+   *
+   * swaps the table the inodes live in, the new one starts out empty, so
+   * call this before a format or a mount (readAllFromDisk), FileSystem picks
+   * the mapped one for both
    */
-  public Inode()
+  public static synchronized void setMappedStore(boolean mapped)
   {
-    length = 0;
-    count = 0;
-    flag = FLAG_USED;
-    for(int i=0; i<directSize; i++)
+    if(mapped == (table instanceof MappedInodeTable))
     {
-      direct[i] = -1;
+      return;
     }
-    indirect = -1;
+    table = newTable(mapped);
+    clear();
   }
-  
+
   /*
-   * constructor that retrieves data from disc
-   * (assuming this is the Inumber-th Inode)
+   * usesMappedStore
    *
+   * @return : boolean : whether the inodes are in the off-heap store
    */
-  public Inode(short Inumber)
+  public static boolean usesMappedStore()
   {
-    byte[] buffer = new byte[Disk.blockSize];
-    short blockNumber = 
-          (short)(((Inumber * inodeSize ) / Disk.blockSize) + 1);
-    short position    = 
-          (short) ((Inumber * inodeSize ) % Disk.blockSize);
+    return table instanceof MappedInodeTable;
+  }
 
-    SysLib.cread(blockNumber,buffer);
+  /*
+   * newTable
+   *
+   * @param  : mapped : boolean : whether to use the off-heap store
+   * @return : InodeTable : an empty table for the current format
+   */
+  private static InodeTable newTable(boolean mapped)
+  {
+    return mapped ? new MappedInodeTable(format,16)
+                  : new InodeTable(format,16);
+  }
 
-    length = FileSystem.bytesToInt(position,buffer);  // get the data
-    position += 4;  // ints are 4 bytes, so read from the next bit next time
+  /*
+   * getFormat
+   *
+   * @return : InodeFormat : the inode format the disk uses
+   */
+  public static InodeFormat getFormat()
+  {
+    return format;
+  }
 
-    count = FileSystem.bytesToShort(position,buffer);  // get the data
-    position += 2;
+  /*
+   * setFormat
+   *
+   * @param  : newFormat : InodeFormat : the inode format of the disk
+   * @return : void
+   *
+   * switches to a new format with an empty table, this is for format and
+   * mount (before readAllFromDisk), to change the format of inodes that are
+   * already loaded use convert
+   */
+  public static synchronized void setFormat(InodeFormat newFormat)
+  {
+    format = newFormat;
+    table = newTable(table instanceof MappedInodeTable);
+    clear();
+  }
 
-    flag = FileSystem.bytesToShort(position,buffer);
-    position += 2;
+  /*
+   * convert
+   *
+   * @param  : newFormat : InodeFormat : the format to switch to
+   * @return : void
+   *
+   * moves every inode into a table of the new format, keeping the length,
+   * count and flag but none of the block pointers (they mean different things
+   * in each format, so the caller has to add the blocks back), every inode is
+   * marked dirty so the next allToDisk writes them all in the new format
+   */
+  public static synchronized void convert(InodeFormat newFormat)
+  {
+    InodeTable old = table;
+    format = newFormat;
+    table = newTable(old instanceof MappedInodeTable);
 
-    for(int i=0; i<directSize; i++)
+    for(int i=0; i<old.size(); i++)
     {
-      direct[i] = FileSystem.bytesToShort(position,buffer);
-      position += 2;
+      table.add();
+      if(old.inUse(i))
+      {
+        table.reset(i);
+        table.setLength(i,old.getLength(i));
+        table.setCount(i,old.getCount(i));
+        table.setFlag(i,old.getFlag(i));
+        markDirty(i);
+      }
     }
+  }
+
+  /*
+   * markDirty
+   *
+   * @param  : Inumber : int : the inode that changed
+   * @return : void
+   *
+   * remembers that an inode changed, so the next allToDisk writes the block
+   * it lives in (anything that changes length, flag or a block pointer, or
+   * fills or empties a slot, calls this)
+   */
+  public static synchronized void markDirty(int Inumber)
+  {
+    dirty.set(Inumber);
+  }
 
-    indirect = FileSystem.bytesToShort(position,buffer);
+  /*
+   * clear
+   *
+   * @return : void
+   *
+   * empties the inode table, this is called by format right before it
+   * zeroes the superblock and inode blocks (so the saved count is 0 too)
+   */
+  public static void clear()
+  {
+    table.clear();
+    dirty.clear();
+    savedCount = 0;
+    freeCount = 0;
   }
 
-  public int toDisk(short Inumber)
+  /*
+   * size
+   *
+   * @return : int : the number of slots in the inode table (used or not)
+   */
+  public static int size()
   {
-    byte[] buffer = new byte[Disk.blockSize];
-    short blockNumber = 
-          (short)(((Inumber * inodeSize ) / Disk.blockSize) + 1);
-    short position    = 
-          (short) ((Inumber * inodeSize ) % Disk.blockSize);
+    return table.size();
+  }
+
+  /*
+   * pushFreeSlot
+   *
+   * @param  : Inumber : int : the empty slot
+   * @return : void
+   *
+   * adds a slot to the free slot stack, growing it if it's full
+   */
+  private static void pushFreeSlot(int Inumber)
+  {
+    if(freeCount == freeSlots.length)
+    {
+      int[] bigger = new int[freeSlots.length * 2];
+      System.arraycopy(freeSlots,0,bigger,0,freeCount);
+      freeSlots = bigger;
+    }
+    freeSlots[freeCount++] = Inumber;
+  }
 
-    SysLib.cread(blockNumber,buffer);
+  /*
+   * constructor
+   *
+   * @param : Inumber : short : the inode this handle is for
+   *
+   * handles are made by getInode, so they always point at a used slot
+   */
+  private Inode(short Inumber)
+  {
+    this.Inumber = Inumber;
+  }
 
-    FileSystem.intToBytes(position,length,buffer);  // get the data
-    position += 4;  // ints are 4 bytes, so read from the next bit next time
+  // field accessors, these go straight to the table
 
-    FileSystem.shortToBytes(position,count,buffer);  // get the data
-    position += 2;
+  public int getLength()
+  {
+    return table.getLength(Inumber);
+  }
 
-    FileSystem.shortToBytes(position,flag,buffer);
-    position += 2;
+  public void setLength(int length)
+  {
+    table.setLength(Inumber,length);
+  }
 
-    for(int i=0; i<directSize; i++)
-    {
-      FileSystem.shortToBytes(position,direct[i],buffer);
-      position += 2;
-    }
+  public short getFlag()
+  {
+    return table.getFlag(Inumber);
+  }
 
-    FileSystem.shortToBytes(position,indirect,buffer);
+  public void setFlag(short flag)
+  {
+    table.setFlag(Inumber,flag);
+  }
 
-    SysLib.cwrite(blockNumber,buffer);
+  public int getDirect(int i)
+  {
+    return table.getPointer(Inumber,i);
+  }
 
-    // add it to the vector
-    //while(Inodes.size() < Inumber)
-    //{
-      //Inodes.add(null);
-    //}
-    //Inodes.add(this);
+  public void setDirect(int i, int block)
+  {
+    table.setPointer(Inumber,i,block);
+  }
+
+  // (level) is the level of indirection, 1 is the single indirect pointer,
+  // 2 the double one and so on up to format.levels
 
-    return 0;
+  public int getIndirect(int level)
+  {
+    return table.getPointer(Inumber,format.directs + level - 1);
   }
 
-  public static void allToDisk()
+  public void setIndirect(int level, int block)
   {
-    // update the inode count (in superblock)
+    table.setPointer(Inumber,format.directs + level - 1,block);
+  }
+
+  /*
+   * toDisk
+   *
+   * @return : void
+   *
+   * writes the block this inode lives in to the disk (with every other inode
+   * in it, they're all in memory anyway)
+   */
+  public void toDisk()
+  {
+    int perBlock = Disk.blockSize / inodeSize;
+    int first = Inumber - (Inumber % perBlock);
     byte[] buffer = new byte[Disk.blockSize];
-    SysLib.cread(0,buffer);
-    FileSystem.intToBytes(12,Inodes.size(),buffer);
-    SysLib.cwrite(0,buffer);
+    table.toBlock(first,buffer);
+    SysLib.cwrite(first / perBlock + 1,buffer);
+  }
 
-    // if an entry in the vector is null, we write a "inode" with length = -1
-    // so we know to leave a gap in when we're booting up later
-    Inode dummy = new Inode();
-    dummy.length = -1;
+  /*
+   * allToDisk
+   *
+   * @return : void
+   *
+   * writes every dirty inode to the disk, grouped by the block they live in,
+   * so each inode block is written at most once (and never read, since every
+   * inode in it is already in memory)
+   */
+  public static synchronized void allToDisk()
+  {
+    int size = table.size();
 
-    for(short i=0; i<Inodes.size(); i++)
+    // update the inode count (in superblock) if it changed
+    byte[] buffer = new byte[Disk.blockSize];
+    if(size != savedCount)
     {
-      if(Inodes.get(i) != null && Inodes.get(i).flag != FLAG_DELETED)
-      {
-        Inodes.get(i).toDisk(i);
-      }
-      else
-      {
-        dummy.toDisk(i);
-      }
+      SysLib.cread(0,buffer);
+      FileSystem.intToBytes(12,size,buffer);
+      SysLib.cwrite(0,buffer);
+      savedCount = size;
+    }
+
+    int perBlock = Disk.blockSize / inodeSize;
+    int i = dirty.nextSetBit(0);
+    while(i >= 0 && i < size)
+    {
+      // rebuild the whole block this inode is in from memory
+      int first = i - (i % perBlock);
+      table.toBlock(first,buffer);
+      SysLib.cwrite(first / perBlock + 1,buffer);
+
+      // skip past the rest of the dirty inodes in this block
+      i = dirty.nextSetBit(first + perBlock);
     }
+
+    dirty.clear();
   }
 
+  /*
+   * readAllFromDisk
+   *
+   * @return : void
+   *
+   * loads the inode table from the disk, reading each inode block once
+   */
   public static void readAllFromDisk()
   {
+    // what's in memory now matches the disk
+    table.clear();
+    dirty.clear();
+
     // update the inode count (in superblock)
     byte[] buffer = new byte[Disk.blockSize];
     SysLib.cread(0,buffer);
     int count = FileSystem.bytesToInt(12,buffer);
-    Inode temp;
 
-    for(short i=0; i<count; i++)
+    int perBlock = Disk.blockSize / inodeSize;
+    for(int first=0; first<count; first+=perBlock)
     {
-      temp = new Inode(i);
-      if(temp.length != -1)
-      {
-        Inodes.add(temp);  
-      }
-      else
+      SysLib.cread(first / perBlock + 1,buffer);
+      table.fromBlock(first,Math.min(perBlock,count - first),buffer);
+    }
+    savedCount = count;
+
+    // remember the gaps, lowest on top so they're reused first
+    freeCount = 0;
+    for(int i=count-1; i>=0; i--)
+    {
+      if(!table.inUse(i))
       {
-        Inodes.add(null);
+        pushFreeSlot(i);
       }
     }
   }
@@ -171,14 +378,14 @@ public class Inode
   public String toString()
   {
     String retval = "";
-    retval += ("l=" + Integer.toString(length) + " ");
-    retval += ("c=" + Short.toString(count)    + " ");
-    retval += ("f=" + Short.toString(flag)     + " ");
+    retval += ("l=" + Integer.toString(getLength()) + " ");
+    retval += ("c=" + Short.toString(table.getCount(Inumber)) + " ");
+    retval += ("f=" + Short.toString(getFlag())     + " ");
     retval += "d=[";
-    for(int i=0; i<directSize; i++)
+    for(int i=0; i<format.directs; i++)
     {
-      retval += Short.toString(direct[i]);
-      if(i < directSize-1)
+      retval += Integer.toString(getDirect(i));
+      if(i < format.directs-1)
       {
         retval += ",";
       }
@@ -187,70 +394,311 @@ public class Inode
         retval += "] ";
       }
     }
-    retval += ("i=" + Short.toString(indirect));
+    retval += "i=[";
+    for(int level=1; level<=format.levels; level++)
+    {
+      retval += Integer.toString(getIndirect(level));
+      retval += (level < format.levels ? "," : "]");
+    }
     return retval;
   }
 
+  /*
+   * getLock
+   *
+   * @return : ReentrantReadWriteLock : the lock for this inumber
+   */
+  public ReentrantReadWriteLock getLock()
+  {
+    return locks[Inumber];
+  }
+
   public static Inode getInode(int i)
   {
-    if(i >= 0 & i < Inodes.size())
+    if(table.inUse(i))
     {
-      return Inodes.get(i);
+      return new Inode((short)i);
     }
     return null;
   }
 
-  public static short allocateInode()
+  public static synchronized short allocateInode()
   {
-    // add an item to the vector (replacing a null if there is one)
-    for(short i=0; i<Inodes.size(); i++)
+    // use an empty slot if there is one
+    if(freeCount > 0)
     {
-      if(Inodes.get(i) == null)
-      {
-        // this is an empty slot, so use it
-        Inodes.set(i,new Inode());
-        return i;
-      }
+      short i = (short)freeSlots[--freeCount];
+      table.reset(i);
+      markDirty(i);
+      return i;
     }
 
     // we didn't find a gap to fill, so don't add one if we're at full capacity
-    if(Inodes.size() == maxCount)
+    if(table.size() == maxCount)
     {
       return (short)(-1);
     }
 
-    Inodes.add(new Inode());
-    return (short)(Inodes.size() - 1);
+    short i = (short)table.add();
+    table.reset(i);
+    markDirty(i);
+    return i;
   }
 
-  public static short seekPointerToBlock(int seek, int Inumber)
+  public static int seekPointerToBlock(int seek, int Inumber)
   {
-    Inode i = Inodes.get(Inumber);
-    if(i == null)
+    if(!table.inUse(Inumber))
     {
       return -1;
     }
 
-    // check if it's in a direct block (seek is below directSize * blockSize)
-    if(seek < directSize * Disk.blockSize)
+    // the block map already has the direct and indirect pointers in memory,
+    // so this doesn't need to read any indirect blocks
+    return new Inode((short)Inumber).getBlockMap().get(seek / Disk.blockSize);
+  }
+
+  /*
+   * getBlockMap
+   *
+   * @return : BlockMap : the blocks of this file, as extents
+   *
+   * builds the map from the direct pointers and the indirect blocks the
+   * first time it's called (that's the only time the indirect blocks get
+   * read, however deep they go), it's kept in the table so every handle
+   * shares it
+   *
+   * the map is only put in the table once it's finished, since readers
+   * (holding the read lock) can be building it at the same time
+   */
+  public BlockMap getBlockMap()
+  {
+    BlockMap map = table.getMap(Inumber);
+    if(map != null)
     {
-      int index = seek / Disk.blockSize;
-      return i.direct[index];
+      return map;
     }
 
-    // it's in the indirect block somewhere
-    int index = (seek / Disk.blockSize) - directSize;
-    byte[] indirectBlock = new byte[Disk.blockSize];
-    SysLib.cread(i.indirect,indirectBlock);
-    return FileSystem.bytesToShort(index * 2,indirectBlock);
+    map = new BlockMap();
+    buildBlockMap(map);
+    table.setMap(Inumber,map);
+    return map;
+  }
+
+  /*
+   * buildBlockMap
+   *
+   * @param  : map : BlockMap : an empty map
+   * @return : void
+   *
+   * adds every block of the file to the map, in order
+   */
+  private void buildBlockMap(BlockMap map)
+  {
+    // blocks are only ever added to the first empty slot, so the first -1
+    // is the end of the file
+    for(int i=0; i<format.directs; i++)
+    {
+      if(getDirect(i) == -1)
+      {
+        return;
+      }
+      map.add(getDirect(i));
+    }
+
+    IndirectCache cache = getIndirectCache();
+    for(int level=1; level<=format.levels; level++)
+    {
+      if(getIndirect(level) == -1 ||
+         !mapIndirect(map,cache,getIndirect(level),level))
+      {
+        return;
+      }
+    }
+  }
+
+  /*
+   * mapIndirect
+   *
+   * @param  : map : BlockMap : the map to add the blocks to
+   * @param  : cache : IndirectCache : the inode's indirect blocks
+   * @param  : block : int : an indirect block
+   * @param  : depth : int : 1 if it points at data blocks, 2 if it points at
+   *                         blocks that point at data blocks, and so on
+   * @return : boolean : false once it finds the end of the file
+   *
+   * adds every data block under an indirect block to the map, in order
+   */
+  private static boolean mapIndirect(BlockMap map, IndirectCache cache,
+                                     int block, int depth)
+  {
+    int[] pointers = cache.get(block);
+    for(int slot=0; slot<pointers.length; slot++)
+    {
+      int pointer = pointers[slot];
+      if(pointer == -1)
+      {
+        return false;
+      }
+      if(depth == 1)
+      {
+        map.add(pointer);
+      }
+      else if(!mapIndirect(map,cache,pointer,depth - 1))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * addIndirectBlocks
+   *
+   * @param  : map : BlockMap : the map to add them to
+   * @return : void
+   *
+   * adds every indirect block this inode uses (at every level) to the map,
+   * so they can be freed along with the data blocks
+   */
+  public void addIndirectBlocks(BlockMap map)
+  {
+    IndirectCache cache = getIndirectCache();
+    for(int level=1; level<=format.levels; level++)
+    {
+      if(getIndirect(level) != -1)
+      {
+        addTree(map,cache,getIndirect(level),level);
+      }
+    }
+  }
+
+  /*
+   * addTree
+   *
+   * @param  : map : BlockMap : the map to add them to
+   * @param  : cache : IndirectCache : the inode's indirect blocks
+   * @param  : block : int : an indirect block
+   * @param  : depth : int : how many levels of indirect blocks it heads
+   * @return : void
+   *
+   * adds an indirect block and every indirect block under it to the map (the
+   * bottom level isn't read, its pointers are all data blocks)
+   */
+  private static void addTree(BlockMap map, IndirectCache cache, int block,
+                              int depth)
+  {
+    map.add(block);
+    if(depth == 1)
+    {
+      return;
+    }
+
+    int[] pointers = cache.get(block);
+    for(int slot=0; slot<pointers.length; slot++)
+    {
+      if(pointers[slot] == -1)
+      {
+        return;
+      }
+      addTree(map,cache,pointers[slot],depth - 1);
+    }
+  }
+
+  /*
+   * getIndirectCache
+   *
+   * @return : IndirectCache : this inode's decoded indirect blocks
+   *
+   * made the first time it's needed, it's kept in the table so every handle
+   * shares it, until the inode is closed for the last time
+   */
+  public IndirectCache getIndirectCache()
+  {
+    InodeTable current = table;
+    synchronized(current)
+    {
+      IndirectCache cache = current.getCache(Inumber);
+      if(cache == null)
+      {
+        cache = new IndirectCache();
+        current.setCache(Inumber,cache);
+      }
+      return cache;
+    }
+  }
+
+  /*
+   * releaseIndirectCache
+   *
+   * @return : void
+   *
+   * writes back this inode's changed indirect blocks and lets go of the
+   * cache (the block map stays, so reads still don't need them)
+   */
+  public void releaseIndirectCache()
+  {
+    InodeTable current = table;
+    synchronized(current)
+    {
+      IndirectCache cache = current.getCache(Inumber);
+      if(cache != null)
+      {
+        cache.flush();
+        current.setCache(Inumber,null);
+      }
+    }
+  }
+
+  /*
+   * flushIndirect
+   *
+   * @return : void
+   *
+   * writes back the changed indirect blocks of every inode, this has to
+   * happen before allToDisk so the inodes never point at stale blocks
+   */
+  public static void flushIndirect()
+  {
+    for(int i=0; i<table.size(); i++)
+    {
+      IndirectCache cache = table.getCache(i);
+      if(cache != null)
+      {
+        cache.flush();
+      }
+    }
+  }
+
+  /*
+   * mapBlock
+   *
+   * @param  : block : int : the block that was just given to this inode
+   * @return : void
+   *
+   * keeps the block map in sync when a block is allocated
+   */
+  public void mapBlock(int block)
+  {
+    BlockMap map = table.getMap(Inumber);
+    if(map == null)
+    {
+      // building it now picks up the new pointer on its own
+      getBlockMap();
+    }
+    else
+    {
+      map.add(block);
+    }
   }
 
-  public static boolean deleteInode(int Inumber)
+  public static synchronized boolean deleteInode(int Inumber)
   {
-    if(Inumber >= 0 && Inumber < Inodes.size() && Inodes.get(Inumber) != null)
+    if(table.inUse(Inumber))
     {
-      FileSystem.freeInode(Inodes.get(Inumber));
-      Inodes.set(Inumber,null);
+      FileSystem.freeInode(new Inode((short)Inumber));
+      table.erase(Inumber);
+      markDirty(Inumber);
+      pushFreeSlot(Inumber);
       return true;
     }
     return false;
@@ -0,0 +1,150 @@
+/*
+ * InodeFormat
+ *
+ * the shape of an inode on the disk, every format is still 32 bytes (the
+ * length int, the count short and the flag short, then the block pointers),
+ * what changes is how big a pointer is and how they're split between direct
+ * pointers and levels of indirection
+ *
+ * version 1 is the original one, 11 direct shorts and one indirect short,
+ * which caps a file at 267 blocks and the disk at 32767 blocks
+ *
+ * version 2 uses int pointers, 3 direct ones, then a single, a double and a
+ * triple indirect one (an indirect block holds 128 ints), so a file can have
+ * a little over 2 million blocks
+ *
+ * an indirect block is an array of pointers the same size as the ones in the
+ * inode, the first -1 is the end of the file (blocks are only ever added to
+ * the end), and for the deeper levels each pointer is another indirect block
+ */
+public class InodeFormat
+{
+  public static final InodeFormat V1 = new InodeFormat(1, 11, 1, 2);
+  public static final InodeFormat V2 = new InodeFormat(2,  3, 3, 4);
+
+  // what new disks are formatted with
+  public static final InodeFormat CURRENT = V2;
+
+  public final int version;      // what the superblock says
+  public final int directs;      // how many direct pointers an inode has
+  public final int levels;       // how many indirect pointers (1 = single,
+                                 // 2 = single and double, and so on)
+  public final int pointerSize;  // bytes per pointer, in inodes and in
+                                 // indirect blocks
+  public final int pointers;     // direct plus indirect pointers
+  public final int perIndirect;  // how many pointers fit in one block
+
+  private InodeFormat(int version, int directs, int levels, int pointerSize)
+  {
+    this.version     = version;
+    this.directs     = directs;
+    this.levels      = levels;
+    this.pointerSize = pointerSize;
+    this.pointers    = directs + levels;
+    this.perIndirect = Disk.blockSize / pointerSize;
+  }
+
+  /*
+   * get
+   *
+   * @param  : version : int : the version from the superblock
+   * @return : InodeFormat : that format (disks from before there were
+   *                         versions say 0, which is version 1)
+   */
+  public static InodeFormat get(int version)
+  {
+    return version == 2 ? V2 : V1;
+  }
+
+  /*
+   * span
+   *
+   * @param  : level : int : the level of indirection (1 = single)
+   * @return : long : how many data blocks hang off a pointer at that level
+   */
+  public long span(int level)
+  {
+    long retval = 1;
+    for(int i=0; i<level; i++)
+    {
+      retval *= perIndirect;
+    }
+    return retval;
+  }
+
+  /*
+   * maxBlocks
+   *
+   * @return : long : the most data blocks one file can have
+   */
+  public long maxBlocks()
+  {
+    long retval = directs;
+    for(int level=1; level<=levels; level++)
+    {
+      retval += span(level);
+    }
+    return retval;
+  }
+
+  /*
+   * indirectBlocks
+   *
+   * @param  : blocks : int : how many data blocks the file has
+   * @return : int : how many indirect blocks it needs to point at them all
+   */
+  public int indirectBlocks(int blocks)
+  {
+    long left = blocks - directs;
+    int retval = 0;
+    for(int level=1; level<=levels && left > 0; level++)
+    {
+      long here = Math.min(left, span(level));
+      left -= here;
+
+      // every level of the tree under this pointer, from the leaves up
+      for(int depth=1; depth<=level; depth++)
+      {
+        long covered = span(depth);
+        retval += (int)((here + covered - 1) / covered);
+      }
+    }
+    return retval;
+  }
+
+  /*
+   * readPointer
+   *
+   * @param  : location : int : where in the buffer the pointer is
+   * @param  : buffer : byte[] : an inode block or an indirect block
+   * @return : int : the pointer (-1 if it's empty)
+   */
+  public int readPointer(int location, byte[] buffer)
+  {
+    if(pointerSize == 2)
+    {
+      return FileSystem.bytesToShort(location,buffer);
+    }
+    return FileSystem.bytesToInt(location,buffer);
+  }
+
+  /*
+   * writePointer
+   *
+   * @param  : location : int : where in the buffer the pointer goes
+   * @param  : block : int : the pointer
+   * @param  : buffer : byte[] : an inode block or an indirect block
+   * @return : void
+   */
+  public void writePointer(int location, int block, byte[] buffer)
+  {
+    if(pointerSize == 2)
+    {
+      FileSystem.shortToBytes(location,(short)block,buffer);
+    }
+    else
+    {
+      FileSystem.intToBytes(location,block,buffer);
+    }
+  }
+}
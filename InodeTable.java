@@ -0,0 +1,381 @@
+/*
+ * InodeTable
+ *
+ * the in-memory copy of every inode, stored as parallel arrays (one array
+ * per field, indexed by inumber) instead of one object per inode
+ *
+ * the pointers of every inode live in one flat array, the direct pointers
+ * followed by the indirect ones (how many of each depends on the format the
+ * disk uses), so inode i's pointers start at i * format.pointers
+ *
+ * Inode objects are just handles (an inumber) that read and write through
+ * this table, so they're cheap to make and don't hold any data themselves
+ */
+public class InodeTable
+{
+  // how the inodes are laid out on the disk, and the number of pointers
+  // each inode has (direct ones plus the indirect ones)
+  protected final InodeFormat format;
+  protected final int pointerCount;
+
+  protected int size;          // the number of slots in use (the inode count)
+  private int[] length;        // length of each file in bytes
+  private short[] count;       // number of file table entries for each inode
+  private short[] flag;        // state of each inode (FLAG_UNUSED if empty)
+  private int[] pointers;      // the direct and indirect pointers, flattened
+  private BlockMap[] maps;     // each inode's block map, built when needed
+  private IndirectCache[] caches;  // each inode's decoded indirect blocks
+
+  /*
+   * constructor
+   *
+   * @param : format : InodeFormat : the inode format of the disk
+   * @param : capacity : int : how many inodes to make room for at first
+   *                           (it grows if it needs more)
+   */
+  public InodeTable(InodeFormat format, int capacity)
+  {
+    this.format = format;
+    this.pointerCount = format.pointers;
+    size = 0;
+    allocate(Math.max(capacity, 16));
+  }
+
+  /*
+   * allocate
+   *
+   * @param  : capacity : int : how many inodes the table should hold
+   * @return : void
+   *
+   * makes the storage (keeping what's already in it)
+   */
+  private void allocate(int capacity)
+  {
+    allocateFields(capacity);
+
+    BlockMap[] newMaps = new BlockMap[capacity];
+    IndirectCache[] newCaches = new IndirectCache[capacity];
+    if(maps != null)
+    {
+      System.arraycopy(maps,0,newMaps,0,size);
+      System.arraycopy(caches,0,newCaches,0,size);
+    }
+    maps = newMaps;
+    caches = newCaches;
+  }
+
+  /*
+   * allocateFields
+   *
+   * @param  : capacity : int : how many inodes the arrays should hold
+   * @return : void
+   *
+   * makes the field arrays (keeping what's already in them)
+   */
+  protected void allocateFields(int capacity)
+  {
+    length   = grow(length, capacity);
+    count    = grow(count, capacity);
+    flag     = grow(flag, capacity);
+    pointers = grow(pointers, capacity * pointerCount);
+  }
+
+  /*
+   * capacity
+   *
+   * @return : int : how many inodes fit before the arrays have to grow
+   */
+  protected int capacity()
+  {
+    return maps.length;
+  }
+
+  /*
+   * size
+   *
+   * @return : int : the number of slots in the table (used or not)
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /*
+   * clear
+   *
+   * @return : void
+   *
+   * empties the table
+   */
+  public void clear()
+  {
+    for(int i=0; i<size; i++)
+    {
+      maps[i] = null;
+      caches[i] = null;
+    }
+    size = 0;
+  }
+
+  /*
+   * add
+   *
+   * @return : int : the inumber of a new slot at the end of the table
+   *
+   * the new slot is empty until reset is called on it
+   */
+  public int add()
+  {
+    if(size == capacity())
+    {
+      allocate(capacity() * 2);
+    }
+    erase(size);
+    return size++;
+  }
+
+  /*
+   * reset
+   *
+   * @param  : i : int : the inumber
+   * @return : void
+   *
+   * makes slot (i) a fresh, used, empty file (like the old default
+   * constructor of Inode did)
+   */
+  public void reset(int i)
+  {
+    setLength(i,0);
+    setCount(i,(short)0);
+    setFlag(i,Inode.FLAG_USED);
+    for(int p=0; p<pointerCount; p++)
+    {
+      setPointer(i,p,-1);
+    }
+    maps[i] = null;
+    caches[i] = null;
+  }
+
+  /*
+   * erase
+   *
+   * @param  : i : int : the inumber
+   * @return : void
+   *
+   * marks slot (i) as empty
+   */
+  public void erase(int i)
+  {
+    setLength(i,-1);
+    setCount(i,(short)0);
+    setFlag(i,Inode.FLAG_UNUSED);
+    for(int p=0; p<pointerCount; p++)
+    {
+      setPointer(i,p,-1);
+    }
+    maps[i] = null;
+    caches[i] = null;
+  }
+
+  /*
+   * inUse
+   *
+   * @param  : i : int : the inumber
+   * @return : boolean : whether slot (i) holds an inode
+   */
+  public boolean inUse(int i)
+  {
+    return i >= 0 && i < size && getFlag(i) != Inode.FLAG_UNUSED;
+  }
+
+  // field accessors, (i) is always the inumber
+
+  public int getLength(int i)
+  {
+    return length[i];
+  }
+
+  public void setLength(int i, int value)
+  {
+    length[i] = value;
+  }
+
+  public short getCount(int i)
+  {
+    return count[i];
+  }
+
+  public void setCount(int i, short value)
+  {
+    count[i] = value;
+  }
+
+  public short getFlag(int i)
+  {
+    return flag[i];
+  }
+
+  public void setFlag(int i, short value)
+  {
+    flag[i] = value;
+  }
+
+  // (p) is the pointer index, 0 to format.directs-1 are the direct pointers
+  // and the rest are the indirect ones (single first)
+
+  public int getPointer(int i, int p)
+  {
+    return pointers[i * pointerCount + p];
+  }
+
+  public void setPointer(int i, int p, int value)
+  {
+    pointers[i * pointerCount + p] = value;
+  }
+
+  public BlockMap getMap(int i)
+  {
+    return maps[i];
+  }
+
+  public void setMap(int i, BlockMap map)
+  {
+    maps[i] = map;
+  }
+
+  public IndirectCache getCache(int i)
+  {
+    return caches[i];
+  }
+
+  public void setCache(int i, IndirectCache cache)
+  {
+    caches[i] = cache;
+  }
+
+  /*
+   * fromBlock
+   *
+   * @param  : first : int : the inumber of the first inode in the block
+   * @param  : n : int : how many inodes of the block to load
+   * @param  : buffer : byte[] : an inode block read from the disk
+   * @return : void
+   *
+   * loads (n) inodes from an inode block into slots first to first + n - 1
+   * (a length of -1 on the disk means the slot is empty)
+   */
+  public final void fromBlock(int first, int n, byte[] buffer)
+  {
+    while(capacity() < first + n)
+    {
+      allocate(capacity() * 2);
+    }
+    size = Math.max(size, first + n);
+
+    loadFields(first,n,buffer);
+    for(int i=first; i<first+n; i++)
+    {
+      maps[i] = null;
+      caches[i] = null;
+      if(getLength(i) == -1)
+      {
+        erase(i);
+      }
+    }
+  }
+
+  /*
+   * loadFields
+   *
+   * @param  : first : int : the inumber of the first inode in the block
+   * @param  : n : int : how many inodes of the block to load
+   * @param  : buffer : byte[] : an inode block read from the disk
+   * @return : void
+   *
+   * decodes the fields of (n) inodes from the block into the arrays
+   */
+  protected void loadFields(int first, int n, byte[] buffer)
+  {
+    for(int j=0; j<n; j++)
+    {
+      int i = first + j;
+      int position = j * Inode.inodeSize;
+
+      setLength(i,FileSystem.bytesToInt(position,buffer));
+      position += 4;  // ints are 4 bytes, so read from the next bit next time
+
+      setCount(i,FileSystem.bytesToShort(position,buffer));
+      position += 2;
+
+      setFlag(i,FileSystem.bytesToShort(position,buffer));
+      position += 2;
+
+      for(int p=0; p<pointerCount; p++)
+      {
+        setPointer(i,p,format.readPointer(position,buffer));
+        position += format.pointerSize;
+      }
+    }
+  }
+
+  /*
+   * toBlock
+   *
+   * @param  : first : int : the inumber of the first inode in the block
+   * @param  : buffer : byte[] : the block to write into
+   * @return : void
+   *
+   * writes a whole inode block worth of inodes into the buffer, empty slots,
+   * deleted inodes and slots past the end of the table are written with a
+   * length of -1 so they're left as gaps when they're loaded later
+   */
+  public void toBlock(int first, byte[] buffer)
+  {
+    int perBlock = Disk.blockSize / Inode.inodeSize;
+    for(int j=0; j<perBlock; j++)
+    {
+      int i = first + j;
+      int position = j * Inode.inodeSize;
+      boolean live = i < size && getFlag(i) != Inode.FLAG_UNUSED &&
+                     getFlag(i) != Inode.FLAG_DELETED;
+
+      FileSystem.intToBytes(position,live ? getLength(i) : -1,buffer);
+      position += 4;
+
+      FileSystem.shortToBytes(position,live ? getCount(i) : 0,buffer);
+      position += 2;
+
+      FileSystem.shortToBytes(position,live ? getFlag(i) : Inode.FLAG_USED,
+                              buffer);
+      position += 2;
+
+      for(int p=0; p<pointerCount; p++)
+      {
+        format.writePointer(position,live ? getPointer(i,p) : -1,buffer);
+        position += format.pointerSize;
+      }
+    }
+  }
+
+  // array helpers, they copy the old contents into a bigger array
+
+  private static int[] grow(int[] a, int capacity)
+  {
+    int[] retval = new int[capacity];
+    if(a != null)
+    {
+      System.arraycopy(a,0,retval,0,Math.min(a.length,capacity));
+    }
+    return retval;
+  }
+
+  private static short[] grow(short[] a, int capacity)
+  {
+    short[] retval = new short[capacity];
+    if(a != null)
+    {
+      System.arraycopy(a,0,retval,0,Math.min(a.length,capacity));
+    }
+    return retval;
+  }
+}
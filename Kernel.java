@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Kernel
 {
@@ -42,6 +44,26 @@ public final static int SEEK    = 17; // SysLib.seek( int fd, int offest,
 public final static int FORMAT  = 18; // SysLib.format( int files )
 public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+// Vectored cache calls used by the file system (there are no SysLib
+// wrappers for these, the file system calls Kernel.interrupt directly)
+public final static int CREADV  = 20; // param count,
+                                      //   args { int blk[], byte b[][] }
+public final static int CWRITEV = 21; // the same as CREADV
+
+// File system calls added for performance, SysLib has no wrappers for
+// these either, they're made with
+//   Kernel.interrupt( INTERRUPT_SOFTWARE, call, param, args )
+public final static int FALLOCATE = 22; // param fd, args int[] { size }
+public final static int MKDIR     = 23; // args String path
+public final static int PREAD     = 24; // param fd, args { byte b[] (or a
+                                        //   ByteBuffer), int[] { offset }
+                                        //   or int[] { offset, off, len } }
+public final static int PWRITE    = 25; // the same as PREAD
+public final static int COMMITPOLICY = 26; // param policy,
+                                           //   args int[] { period in ms }
+public final static int DEFERFREE = 27; // param 1 (on) or 0 (off)
+public final static int IOSTAT    = 28; // args int[2], gets { reads, writes }
+
 // Predefined file descriptors
 public final static int STDIN  = 0;
 public final static int STDOUT = 1;
@@ -61,6 +83,10 @@ private static FileSystem fs;
 private static SyncQueue waitQueue;  // for threads to wait for their child
 private static SyncQueue ioQueue;    // I/O queue
 
+// Blocks read and written through the cache since booting (IOSTAT)
+private static AtomicInteger blockReads = new AtomicInteger( );
+private static AtomicInteger blockWrites = new AtomicInteger( );
+
 private final static int COND_DISK_REQ = 1; // wait condition
 private final static int COND_DISK_FIN = 2; // wait condition
 
@@ -181,7 +207,7 @@ case INTERRUPT_SOFTWARE: // System calls
     }
     if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
     {
-      return FileSystem.read( myTcb.getFtEnt(param) , (byte[]) args );
+      return sysReadWrite( true, myTcb.getFtEnt(param), args );
     }
     return ERROR;
     case WRITE:
@@ -198,14 +224,20 @@ case INTERRUPT_SOFTWARE: // System calls
     default:
       if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
       {
-        return FileSystem.write( myTcb.getFtEnt(param) , (byte[]) args );
+        return sysReadWrite( false, myTcb.getFtEnt(param), args );
       }
     }
     return OK;
     case CREAD:   // to be implemented in assignment 4
+    blockReads.incrementAndGet( );
     return cache.read( param, ( byte[] )args ) ? OK : ERROR;
     case CWRITE:  // to be implemented in assignment 4
+    blockWrites.incrementAndGet( );
     return cache.write( param, ( byte[] )args ) ? OK : ERROR;
+    case CREADV:  // read a batch of blocks through the cache
+      return sysCreadv( param, ( Object[] )args );
+    case CWRITEV: // write a batch of blocks through the cache
+      return sysCwritev( param, ( Object[] )args );
     case CSYNC:   // to be implemented in assignment 4
       cache.sync( );
       return OK;
@@ -230,7 +262,7 @@ case INTERRUPT_SOFTWARE: // System calls
       if ( ( myTcb = scheduler.getMyTcb() ) != null &&
          (fte = myTcb.getFtEnt(param)) != null)
       {
-        return fte.inode.length;
+        return fte.inode.getLength();
       }
       return ERROR;
     case SEEK:    // to be implemented in project
@@ -241,6 +273,14 @@ case INTERRUPT_SOFTWARE: // System calls
                                    ((int[])args)[1]);
       }
       return ERROR;
+    case PREAD:   // args is { buffer, int[] { offset, off, len } }
+    case PWRITE:  // (off and len can be left out for the whole buffer)
+      if ( ( myTcb = scheduler.getMyTcb() ) != null &&
+         (fte = myTcb.getFtEnt(param)) != null)
+      {
+        return sysPositional( cmd == PREAD, fte, ( Object[] )args );
+      }
+      return ERROR;
     case FORMAT:  // to be implemented in project
       if(FileSystem.format(param))
       {
@@ -249,6 +289,28 @@ case INTERRUPT_SOFTWARE: // System calls
       return ERROR;
     case DELETE:  // to be implemented in project
       return FileSystem.delete(((String)args));
+    case FALLOCATE:
+      if ( ( myTcb = scheduler.getMyTcb() ) != null &&
+         (fte = myTcb.getFtEnt(param)) != null)
+      {
+        return FileSystem.fallocate(fte,((int[])args)[0]);
+      }
+      return ERROR;
+    case MKDIR:
+      return FileSystem.mkdir((String)args);
+    case COMMITPOLICY: // param is the policy, args is int[] { period in ms }
+      if(FileSystem.setCommitPolicy(param,((int[])args)[0]))
+      {
+        return OK;
+      }
+      return ERROR;
+    case DEFERFREE:    // param is 1 to turn it on, 0 to turn it off
+      FileSystem.setDeferredFree(param != 0);
+      return OK;
+    case IOSTAT:       // args is an int[2], filled with { reads, writes }
+      ((int[])args)[0] = blockReads.get();
+      ((int[])args)[1] = blockWrites.get();
+      return OK;
     }
     return ERROR;
 case INTERRUPT_DISK: // Disk interrupts
@@ -265,6 +327,81 @@ case INTERRUPT_IO:   // other I/O interrupts (not implemented)
 return OK;
 }
 
+// Reading a batch of blocks
+// args[0] is an int[] of block numbers, args[1] the byte[][] to read into
+private static int sysCreadv( int count, Object[] args ) {
+int[] blocks = ( int[] )args[0];
+byte[][] buffers = ( byte[][] )args[1];
+blockReads.addAndGet( count );
+for ( int i = 0; i < count; i++ ) {
+    if ( cache.read( blocks[i], buffers[i] ) == false )
+    return ERROR;
+}
+return OK;
+}
+
+// Writing a batch of blocks
+// args[0] is an int[] of block numbers, args[1] the byte[][] to write from
+private static int sysCwritev( int count, Object[] args ) {
+int[] blocks = ( int[] )args[0];
+byte[][] buffers = ( byte[][] )args[1];
+blockWrites.addAndGet( count );
+for ( int i = 0; i < count; i++ ) {
+    if ( cache.write( blocks[i], buffers[i] ) == false )
+    return ERROR;
+}
+return OK;
+}
+
+// Reading and writing files
+// args is a byte[] (all of it), a ByteBuffer (its position to its limit),
+// or { byte[] buffer, int[] { off, len } } (anything else in the int[] is
+// an error)
+private static int sysReadWrite( boolean read, FileTableEntry fte,
+                                 Object args ) {
+if ( args instanceof ByteBuffer ) {
+    if ( read )
+    return FileSystem.read( fte, ( ByteBuffer )args );
+    return FileSystem.write( fte, ( ByteBuffer )args );
+}
+if ( args instanceof Object[] ) {
+    byte[] buffer = ( byte[] )( ( Object[] )args )[0];
+    int[] range = ( int[] )( ( Object[] )args )[1];
+    if ( range.length != 2 )
+    return ERROR;
+    if ( read )
+    return FileSystem.read( fte, buffer, range[0], range[1] );
+    return FileSystem.write( fte, buffer, range[0], range[1] );
+}
+if ( read )
+    return FileSystem.read( fte, ( byte[] )args );
+return FileSystem.write( fte, ( byte[] )args );
+}
+
+// Positional reads and writes
+// args[0] is the byte[] buffer (or a ByteBuffer, its position to its limit),
+// args[1] is { offset } or { offset, off, len } (only { offset } for a
+// ByteBuffer), anything else is an error
+private static int sysPositional( boolean read, FileTableEntry fte,
+                                  Object[] args ) {
+int[] where = ( int[] )args[1];
+if ( args[0] instanceof ByteBuffer ) {
+    if ( where.length != 1 )
+    return ERROR;
+    if ( read )
+    return FileSystem.pread( fte, where[0], ( ByteBuffer )args[0] );
+    return FileSystem.pwrite( fte, where[0], ( ByteBuffer )args[0] );
+}
+if ( where.length != 1 && where.length != 3 )
+    return ERROR;
+byte[] buffer = ( byte[] )args[0];
+int off = where.length == 3 ? where[1] : 0;
+int len = where.length == 3 ? where[2] : buffer.length;
+if ( read )
+    return FileSystem.pread( fte, where[0], buffer, off, len );
+return FileSystem.pwrite( fte, where[0], buffer, off, len );
+}
+
 // Spawning a new thread
 private static int sysExec( String args[] ) {
 String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,169 @@
+import java.nio.ByteBuffer;
+
+/*
+ * MappedInodeTable
+ *
+ * an inode table that keeps the inodes in one off-heap ByteBuffer laid out
+ * exactly like the inode blocks on the disk (32 bytes per inode, inode i at
+ * byte i * 32, big endian like FileSystem.intToBytes, with pointers as big
+ * as the disk's inode format says)
+ *
+ * the field accessors read and write the buffer in place, loading an inode
+ * block is one bulk copy into the buffer and writing one back is one bulk
+ * copy out of it, nothing gets decoded or encoded a field at a time
+ */
+public class MappedInodeTable extends InodeTable
+{
+  // where each field is inside an inode
+  private static final int LENGTH   = 0;
+  private static final int COUNT    = 4;
+  private static final int FLAG     = 6;
+  private static final int POINTERS = 8;
+
+  private ByteBuffer region;  // the inodes themselves
+
+  /*
+   * constructor
+   *
+   * @param : format : InodeFormat : the inode format of the disk
+   * @param : capacity : int : how many inodes to make room for at first
+   *                           (it grows if it needs more)
+   */
+  public MappedInodeTable(InodeFormat format, int capacity)
+  {
+    super(format, capacity);
+  }
+
+  /*
+   * allocateFields
+   *
+   * @param  : capacity : int : how many inodes the region should hold
+   * @return : void
+   *
+   * makes a bigger region and copies the old one into it
+   */
+  protected void allocateFields(int capacity)
+  {
+    ByteBuffer bigger = ByteBuffer.allocateDirect(capacity * Inode.inodeSize);
+    if(region != null)
+    {
+      ByteBuffer old = region.duplicate();
+      old.clear();
+      bigger.put(old);
+      bigger.clear();
+    }
+    region = bigger;
+  }
+
+  // field accessors, these read and write the region in place
+
+  public int getLength(int i)
+  {
+    return region.getInt(i * Inode.inodeSize + LENGTH);
+  }
+
+  public void setLength(int i, int value)
+  {
+    region.putInt(i * Inode.inodeSize + LENGTH, value);
+  }
+
+  public short getCount(int i)
+  {
+    return region.getShort(i * Inode.inodeSize + COUNT);
+  }
+
+  public void setCount(int i, short value)
+  {
+    region.putShort(i * Inode.inodeSize + COUNT, value);
+  }
+
+  public short getFlag(int i)
+  {
+    return region.getShort(i * Inode.inodeSize + FLAG);
+  }
+
+  public void setFlag(int i, short value)
+  {
+    region.putShort(i * Inode.inodeSize + FLAG, value);
+  }
+
+  public int getPointer(int i, int p)
+  {
+    int position = i * Inode.inodeSize + POINTERS + p * format.pointerSize;
+    if(format.pointerSize == 2)
+    {
+      return region.getShort(position);
+    }
+    return region.getInt(position);
+  }
+
+  public void setPointer(int i, int p, int value)
+  {
+    int position = i * Inode.inodeSize + POINTERS + p * format.pointerSize;
+    if(format.pointerSize == 2)
+    {
+      region.putShort(position, (short)value);
+    }
+    else
+    {
+      region.putInt(position, value);
+    }
+  }
+
+  /*
+   * loadFields
+   *
+   * @param  : first : int : the inumber of the first inode in the block
+   * @param  : n : int : how many inodes of the block to load
+   * @param  : buffer : byte[] : an inode block read from the disk
+   * @return : void
+   *
+   * copies the inodes straight into the region
+   */
+  protected void loadFields(int first, int n, byte[] buffer)
+  {
+    ByteBuffer target = region.duplicate();
+    target.position(first * Inode.inodeSize);
+    target.put(buffer,0,n * Inode.inodeSize);
+  }
+
+  /*
+   * toBlock
+   *
+   * @param  : first : int : the inumber of the first inode in the block
+   * @param  : buffer : byte[] : the block to write into
+   * @return : void
+   *
+   * copies the block's part of the region into the buffer, then patches the
+   * slots that shouldn't be saved as they are (empty slots, deleted inodes
+   * and slots past the end of the table get a length of -1, like the array
+   * table does)
+   */
+  public void toBlock(int first, byte[] buffer)
+  {
+    int perBlock = Disk.blockSize / Inode.inodeSize;
+    int live = Math.max(0, Math.min(perBlock, size - first));
+
+    ByteBuffer source = region.duplicate();
+    source.position(first * Inode.inodeSize);
+    source.get(buffer,0,live * Inode.inodeSize);
+
+    for(int j=0; j<perBlock; j++)
+    {
+      int i = first + j;
+      if(j >= live || getFlag(i) == Inode.FLAG_UNUSED ||
+         getFlag(i) == Inode.FLAG_DELETED)
+      {
+        int position = j * Inode.inodeSize;
+        FileSystem.intToBytes(position + LENGTH,-1,buffer);
+        FileSystem.shortToBytes(position + COUNT,(short)0,buffer);
+        FileSystem.shortToBytes(position + FLAG,Inode.FLAG_USED,buffer);
+        for(int p=0; p<pointerCount; p++)
+        {
+          format.writePointer(position + POINTERS + p * format.pointerSize,
+                              -1,buffer);
+        }
+      }
+    }
+  }
+}
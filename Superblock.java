@@ -1,11 +1,82 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Superblock
+ *
+ * block 0 of the disk, it knows how big the disk is, how many inodes there
+ * are and where the data blocks start
+ *
+ * it also owns the free block bitmap (one bit per block, 1 = in use), which
+ * lives in the blocks right after the inodes and is kept in memory the whole
+ * time, so allocating and freeing blocks doesn't need any disk I/O until the
+ * next sync
+ *
+ * every block from the high water mark onward has never been handed out
+ * since the last format, so it's free without the bitmap having to say so,
+ * the bitmap blocks past it are never read or written
+ *
+ * the bitmap is the block allocator, and it doesn't have a lock, it's an
+ * array of 32 bit words that blocks are claimed and given back in with
+ * compare-and-set, so two threads can never get the same block, and
+ * threads appending to different files never wait on each other
+ *
+ * single blocks come out of a small pool each thread reserves in a batch
+ * (BlockPool), so a thread appending a block at a time only touches the
+ * shared bitmap once per batch, and its blocks stay together, the pools
+ * are given back before the bitmap is written (and when the disk looks
+ * full), and whatever a pool holds while the bitmap is being written is
+ * written as free
+ *
+ * block 0 has a magic number at 24 saying the disk is laid out this way,
+ * a disk formatted with the old linked free list doesn't have it (its
+ * first data block is where the bitmap would be), so it isn't read or
+ * written at all, it has to be formatted again before it can be used
+ */
 public class Superblock
 {
   public int totalBlocks;
   public int totalInodes;
-  public int freeList;
+  public int freeList;   // the first data block, everything before it is the
+                         // superblock, the inodes and the free block bitmap
+  public int inodeVersion;  // the InodeFormat version the inodes are in
+
+  // what block 0 has at 24 once it's formatted with the bitmap, and whether
+  // the disk had it when it was mounted (or has been formatted since)
+  private static final int layoutMagic = 0x424D4150;  // "BMAP"
+  private boolean mountable;
+
+  // whether anything changed since the last toDisk (set by whoever changes it)
+  public volatile boolean dirty;
+
+  // the free block bitmap, and which of its blocks changed since toDisk
+  private int mapStart;                // the first block of the bitmap on disk
+  private AtomicIntegerArray freeMap;  // one bit per block, 1 means in use,
+                                       // block b is bit b % 32 of word b / 32
+  private AtomicIntegerArray mapDirty; // one flag per bitmap block
+  private AtomicInteger cursor;        // where the next search starts
+  private AtomicInteger highWater;     // every block from here on is free
+
+  // each thread's reserved blocks, and all of them (so they can be drained)
+  private static final int poolSize = 8;
+  private ThreadLocal<BlockPool> pools;
+  private ConcurrentLinkedQueue<BlockPool> allPools;
 
   public Superblock(int diskSize)
   {
+    allPools = new ConcurrentLinkedQueue<BlockPool>();
+    pools = new ThreadLocal<BlockPool>()
+    {
+      protected BlockPool initialValue()
+      {
+        BlockPool pool = new BlockPool();
+        allPools.add(pool);
+        return pool;
+      }
+    };
+
     // if a valid superblock is in memory (total blocks is not -1)
     // load the data straight from the disc
     // otherwise make an empty superblock
@@ -30,21 +101,626 @@ public class Superblock
       freeList    = FileSystem.bytesToInt(8,blockData);
     }
 
+    // a formatted disk without the magic number is from before the
+    // bitmap, it's treated as having nothing on it (in memory only)
+    boolean formatted = FileSystem.bytesToInt(8,blockData) != 0;
+    mountable = !formatted ||
+                FileSystem.bytesToInt(24,blockData) == layoutMagic;
+    if(!mountable)
+    {
+      totalInodes = 0;
+    }
+
+    // set up the bitmap, and load it if the disk has been formatted
+    // (only the part below the high water mark, the rest is all free)
+    setLayout(totalInodes);
+    if(formatted && mountable)
+    {
+      int mark = FileSystem.bytesToInt(16,blockData);
+      if(mark <= 0 || mark > totalBlocks)
+      {
+        // an older disk without a high water mark, read the whole bitmap
+        mark = totalBlocks;
+      }
+      highWater.set(mark);
+
+      // disks from before there were inode versions are version 1
+      inodeVersion = Math.max(1, FileSystem.bytesToInt(20,blockData));
+
+      int used = (mark + Disk.blockSize * 8 - 1) / (Disk.blockSize * 8);
+      for(int i=0; i<used; i++)
+      {
+        SysLib.cread(mapStart + i,blockData);
+        int from = i * Disk.blockSize;
+        int size = Math.min(Disk.blockSize, mapBytes() - from);
+        for(int j=0; j<size; j++)
+        {
+          setMapByte(from + j, blockData[j]);
+        }
+      }
+    }
+    else
+    {
+      // nothing to read the inodes of yet
+      inodeVersion = InodeFormat.CURRENT.version;
+    }
+    reserveMetadata();
+
     //SysLib.cout("totalBlocks = " + Integer.toString(totalBlocks) + "\n");
     //SysLib.cout("totalInodes = " + Integer.toString(totalInodes) + "\n");
     //SysLib.cout("freeList    = " + Integer.toString(freeList) + "\n");
   }
 
-  public void toDisk()
+  /*
+   * format
+   *
+   * @param  : files : int : the number of inodes the disk will have
+   * @return : void
+   *
+   * lays the disk out for (files) inodes in the current inode format, and
+   * marks every data block free (nothing is written until toDisk)
+   */
+  public void format(int files)
+  {
+    totalInodes = files;
+    inodeVersion = InodeFormat.CURRENT.version;
+    mountable = true;
+    setLayout(files);
+    reserveMetadata();
+
+    // only the bitmap blocks below the high water mark need writing, every
+    // block past it is free anyway
+    for(int i=0; i<=(highWater.get() - 1) / (Disk.blockSize * 8); i++)
+    {
+      mapDirty.set(i,1);
+    }
+    dirty = true;
+  }
+
+  /*
+   * setLayout
+   *
+   * @param  : files : int : the number of inodes
+   * @return : void
+   *
+   * works out where the bitmap and the data blocks go, and makes an empty
+   * bitmap for them (any blocks threads had reserved from the old one are
+   * forgotten)
+   */
+  private void setLayout(int files)
+  {
+    // 16 inodes per block, starting at block 1 (there's always at least one
+    // inode block, since inode 0 is the directory)
+    mapStart = 2 + (files-1)/16;
+    if(files <= 0)
+    {
+      mapStart = 2;
+    }
+
+    freeMap   = new AtomicIntegerArray((totalBlocks + 31) / 32);
+    mapDirty  = new AtomicIntegerArray(mapBlocks());
+    freeList  = mapStart + mapBlocks();
+    cursor    = new AtomicInteger(freeList);
+    highWater = new AtomicInteger(freeList);
+
+    for(BlockPool pool : allPools)
+    {
+      pool.clear();
+    }
+  }
+
+  /*
+   * mapBlocks
+   *
+   * @return : int : how many blocks the bitmap takes up on the disk
+   */
+  private int mapBlocks()
+  {
+    return (totalBlocks + Disk.blockSize * 8 - 1) / (Disk.blockSize * 8);
+  }
+
+  /*
+   * mapBytes
+   *
+   * @return : int : how many bytes of the bitmap there are on the disk
+   */
+  private int mapBytes()
+  {
+    return (totalBlocks + 7) / 8;
+  }
+
+  /*
+   * isMountable
+   *
+   * @return : boolean : false if the disk was formatted with the old linked
+   *                     free list (and hasn't been formatted since), then
+   *                     nothing on it can be read or written
+   */
+  public boolean isMountable()
+  {
+    return mountable;
+  }
+
+  /*
+   * reserveMetadata
+   *
+   * @return : void
+   *
+   * marks the superblock, inode and bitmap blocks as in use, so they can
+   * never be handed out as data blocks
+   */
+  private void reserveMetadata()
+  {
+    for(int i=0; i<freeList && i<totalBlocks; i++)
+    {
+      setUsed(i,true);
+    }
+  }
+
+  /*
+   * getFreeBlock
+   *
+   * @return : int : a free block (now marked as used), or -1 if the disk
+   *                 is full
+   *
+   * finds the next free block after the last one handed out
+   */
+  public int getFreeBlock()
+  {
+    return getFreeBlocks(1,-1);
+  }
+
+  /*
+   * getFreeBlocks
+   *
+   * @param  : n : int : how many contiguous blocks we want
+   * @param  : goal : int : where we'd like the run to start (normally right
+   *                        after the file's last block), or -1 for anywhere
+   * @return : int : the first block of the run (now marked as used), or -1
+   *                 if there's no run of free blocks that long
+   *
+   * a single block is the goal if it's free, otherwise it comes out of this
+   * thread's pool (which gets refilled with the next run of poolSize free
+   * blocks when it's empty), bigger runs are searched for in the bitmap
+   *
+   * if nothing is found, the pools are given back and it tries once more
+   */
+  public int getFreeBlocks(int n, int goal)
+  {
+    if(n <= 0 || n > totalBlocks - freeList)
+    {
+      return -1;
+    }
+
+    int retval = n == 1 ? getOneBlock(goal) : search(n, goal);
+    if(retval == -1 && drainPools())
+    {
+      retval = n == 1 ? getOneBlock(goal) : search(n, goal);
+    }
+    return retval;
+  }
+
+  /*
+   * getOneBlock
+   *
+   * @param  : goal : int : the block we'd like, or -1 for anywhere
+   * @return : int : a block (now marked as used), or -1 if there are none
+   */
+  private int getOneBlock(int goal)
+  {
+    if(goal >= freeList && goal < totalBlocks && claim(goal))
+    {
+      raiseHighWater(goal + 1);
+      return goal;
+    }
+
+    BlockPool pool = pools.get();
+    int block = pool.take();
+    if(block != -1)
+    {
+      return block;
+    }
+
+    // the pool is empty, reserve another batch (or just one block, if there
+    // isn't a whole batch in a row left), the pool stays locked until the
+    // batch is in it, so a sync copying the bitmap out either finds the
+    // batch in the pool or waits for it to get there
+    synchronized(pool)
+    {
+      int start = search(poolSize, goal);
+      if(start == -1)
+      {
+        return search(1, goal);
+      }
+      pool.fill(start + 1, poolSize - 1);
+      return start;
+    }
+  }
+
+  /*
+   * search
+   *
+   * @param  : n : int : how many contiguous blocks we want
+   * @param  : goal : int : where to start looking, or -1 for after the last
+   *                        run handed out
+   * @return : int : the first block of the run (now marked as used), or -1
+   *                 if there's no run of free blocks that long
+   *
+   * scans the bitmap (wrapping around once) for (n) free blocks in a row,
+   * and claims them one at a time, if another thread claims one first, the
+   * ones it got are given back and the search goes on past it
+   */
+  private int search(int n, int goal)
+  {
+    int block = (goal >= freeList && goal < totalBlocks) ? goal :
+                cursor.get();
+    int run = 0;
+    for(int scanned=0; scanned < totalBlocks - freeList + n; scanned++)
+    {
+      if(block >= totalBlocks)
+      {
+        // wrap around, a run can't go past the end of the disk
+        block = freeList;
+        run = 0;
+      }
+
+      if(run == 0 && (block & 31) == 0 && block + 32 <= totalBlocks &&
+         freeMap.get(block >> 5) == -1)
+      {
+        // the whole word is in use, skip it
+        block += 32;
+        scanned += 31;
+        continue;
+      }
+
+      if(isUsed(block))
+      {
+        run = 0;
+      }
+      else
+      {
+        run++;
+        if(run == n)
+        {
+          int start = block - n + 1;
+          int claimed = claimRun(start, n);
+          if(claimed == n)
+          {
+            cursor.set(block + 1);
+            raiseHighWater(block + 1);
+            return start;
+          }
+
+          // somebody else got one of them first
+          block = start + claimed;
+          run = 0;
+        }
+      }
+      block++;
+    }
+
+    return -1;
+  }
+
+  /*
+   * claimRun
+   *
+   * @param  : start : int : the first block of the run
+   * @param  : n : int : how many blocks are in it
+   * @return : int : (n) if it got all of them, otherwise how many it got
+   *                 before one was taken (those are given back)
+   */
+  private int claimRun(int start, int n)
+  {
+    for(int i=0; i<n; i++)
+    {
+      if(!claim(start + i))
+      {
+        returnBlocks(start, i);
+        return i;
+      }
+    }
+    return n;
+  }
+
+  /*
+   * claim
+   *
+   * @param  : block : int : the block to mark as used
+   * @return : boolean : false if it was already used
+   */
+  private boolean claim(int block)
+  {
+    int word = block >> 5;
+    int bit = 1 << (block & 31);
+    while(true)
+    {
+      int old = freeMap.get(word);
+      if((old & bit) != 0)
+      {
+        return false;
+      }
+      if(freeMap.compareAndSet(word, old, old | bit))
+      {
+        mapDirty.set((block >> 3) / Disk.blockSize, 1);
+        return true;
+      }
+    }
+  }
+
+  /*
+   * raiseHighWater
+   *
+   * @param  : mark : int : one past the last block just handed out
+   * @return : void
+   *
+   * moves the high water mark past it if it was in the free area
+   */
+  private void raiseHighWater(int mark)
+  {
+    int old = highWater.get();
+    while(mark > old)
+    {
+      if(highWater.compareAndSet(old, mark))
+      {
+        dirty = true;
+        return;
+      }
+      old = highWater.get();
+    }
+  }
+
+  /*
+   * drainPools
+   *
+   * @return : boolean : whether any thread had blocks reserved
+   *
+   * gives every thread's reserved blocks back to the bitmap (and forgets the
+   * pools of threads that have finished)
+   */
+  public boolean drainPools()
+  {
+    boolean retval = false;
+    Iterator<BlockPool> it = allPools.iterator();
+    while(it.hasNext())
+    {
+      BlockPool pool = it.next();
+      retval |= pool.drain(this);
+      if(pool.isOrphaned())
+      {
+        it.remove();
+      }
+    }
+    return retval;
+  }
+
+  /*
+   * freeBlocks
+   *
+   * @return : int : how many data blocks are free
+   *
+   * counts the zero bits in the bitmap (everything past the high water mark
+   * is free without looking), blocks threads have reserved count as free
+   */
+  public int freeBlocks()
+  {
+    drainPools();
+    int mark = highWater.get();
+    int retval = totalBlocks - mark;
+    for(int block=freeList; block<mark; block++)
+    {
+      if(!isUsed(block))
+      {
+        retval++;
+      }
+    }
+    return retval;
+  }
+
+  /*
+   * returnBlock
+   *
+   * @param  : block : int : the block to mark as free
+   * @return : void
+   *
+   * gives a block back to the bitmap
+   */
+  public void returnBlock(int block)
+  {
+    if(block >= freeList && block < totalBlocks)
+    {
+      setUsed(block,false);
+    }
+  }
+
+  /*
+   * returnBlocks
+   *
+   * @param  : start : int : the first block to mark as free
+   * @param  : n : int : how many blocks (in a row) to mark as free
+   * @return : void
+   *
+   * gives a whole run of blocks back to the bitmap at once, a word of the
+   * bitmap at a time (a word never straddles two bitmap blocks)
+   */
+  public void returnBlocks(int start, int n)
+  {
+    int block = Math.max(start, freeList);
+    int end = Math.min(start + n, totalBlocks);
+    while(block < end)
+    {
+      // the bits of this word that are in the run
+      int first = block & 31;
+      int count = Math.min(32 - first, end - block);
+      int mask = count == 32 ? -1 : ((1 << count) - 1) << first;
+      clearBits(block >> 5, mask);
+      mapDirty.set((block >> 3) / Disk.blockSize, 1);
+      block += count;
+    }
+  }
+
+  /*
+   * isUsed
+   *
+   * @param  : block : int : the block to check
+   * @return : boolean : whether the block is in use
+   */
+  public boolean isUsed(int block)
+  {
+    return (freeMap.get(block >> 5) & (1 << (block & 31))) != 0;
+  }
+
+  /*
+   * setUsed
+   *
+   * @param  : block : int : the block to change
+   * @param  : used : boolean : whether it's in use or free
+   * @return : void
+   *
+   * flips the block's bit and remembers which bitmap block needs writing
+   */
+  private void setUsed(int block, boolean used)
+  {
+    if(used)
+    {
+      claim(block);
+    }
+    else
+    {
+      clearBits(block >> 5, 1 << (block & 31));
+      mapDirty.set((block >> 3) / Disk.blockSize, 1);
+    }
+  }
+
+  /*
+   * clearBits
+   *
+   * @param  : word : int : a word of the bitmap
+   * @param  : mask : int : the bits to clear in it
+   * @return : void
+   */
+  private void clearBits(int word, int mask)
+  {
+    while(true)
+    {
+      int old = freeMap.get(word);
+      if(freeMap.compareAndSet(word, old, old & ~mask))
+      {
+        return;
+      }
+    }
+  }
+
+  /*
+   * getMapByte
+   *
+   * @param  : i : int : a byte of the bitmap (as it's laid out on the disk)
+   * @return : byte : it, pulled out of its word
+   *
+   * the disk has 8 blocks per byte, block b is bit b % 8 of byte b / 8, so
+   * byte i is bits (i % 4) * 8 and up of word i / 4
+   */
+  private byte getMapByte(int i)
+  {
+    return (byte)(freeMap.get(i >> 2) >>> ((i & 3) * 8));
+  }
+
+  /*
+   * setMapByte
+   *
+   * @param  : i : int : a byte of the bitmap (as it's laid out on the disk)
+   * @param  : value : byte : what to put there
+   * @return : void
+   *
+   * only used while loading the bitmap, before anyone else can see it
+   */
+  private void setMapByte(int i, byte value)
+  {
+    int shift = (i & 3) * 8;
+    int old = freeMap.get(i >> 2);
+    freeMap.set(i >> 2, (old & ~(0xFF << shift)) | ((value & 0xFF) << shift));
+  }
+
+  /*
+   * sync
+   *
+   * @return : void
+   *
+   * writes block 0 if it changed, and the bitmap blocks that changed
+   */
+  public synchronized void sync()
+  {
+    // gives back what finished threads left behind, mapToDisk keeps the
+    // rest (and anything reserved after this) off the disk
+    drainPools();
+    if(dirty)
+    {
+      toDisk();
+    }
+    mapToDisk();
+  }
+
+  /*
+   * mapToDisk
+   *
+   * @return : void
+   *
+   * writes the dirty blocks of the bitmap to the disk
+   *
+   * the flag is cleared before the block is copied, so a block that
+   * changes while it's being written just gets written again next time
+   *
+   * threads can reserve new batches while this runs (sync only drained the
+   * pools before it), so whatever's sitting in a pool is written as free,
+   * the pool is still the only one that can hand those blocks out, and the
+   * bitmap block stays dirty so what the pool does with them gets saved
+   */
+  private void mapToDisk()
+  {
+    byte[] blockData = new byte[Disk.blockSize];
+    for(int i=0; i<mapDirty.length(); i++)
+    {
+      // bitmap blocks past the high water mark are all zero, so they're
+      // never dirty
+      if(mapDirty.getAndSet(i,0) != 0)
+      {
+        int from = i * Disk.blockSize;
+        int size = Math.min(Disk.blockSize, mapBytes() - from);
+        for(int j=0; j<Disk.blockSize; j++)
+        {
+          blockData[j] = j < size ? getMapByte(from + j) : 0;
+        }
+        // the copy says those blocks are free, but the pool hands them out
+        // without touching the bitmap, so the block has to be written again
+        // next time (by then they're either used or drained)
+        for(BlockPool pool : allPools)
+        {
+          if(pool.clearReserved(from * 8, blockData))
+          {
+            mapDirty.set(i,1);
+          }
+        }
+        SysLib.cwrite(mapStart + i,blockData);
+      }
+    }
+  }
+
+  public synchronized void toDisk()
   {
     byte[] blockData = new byte[Disk.blockSize];
     SysLib.cread(0,blockData);
 
-    FileSystem.intToBytes(0,  totalBlocks, blockData);
-    FileSystem.intToBytes(4,  totalInodes, blockData);
-    FileSystem.intToBytes(8,  freeList,    blockData);
+    FileSystem.intToBytes(0,  totalBlocks,  blockData);
+    FileSystem.intToBytes(4,  totalInodes,  blockData);
+    FileSystem.intToBytes(8,  freeList,     blockData);
+    FileSystem.intToBytes(16, highWater.get(), blockData);
+    FileSystem.intToBytes(20, inodeVersion, blockData);
+    FileSystem.intToBytes(24, layoutMagic,  blockData);
 
     SysLib.cwrite(0,blockData);
+    dirty = false;
+
+    mapToDisk();
   }
 
   public void testPrompt(String cmd,int x,int y,int z)
@@ -58,22 +734,34 @@ public class Superblock
     //}
     /*else*/ if(cmd.toString().toLowerCase().equals("free"))
     {
-      SysLib.cout("Printing Free List\n");
+      SysLib.cout("Printing Free Blocks\n");
+      drainPools();
       int current = freeList;
-      byte[] blockData = new byte[Disk.blockSize];
 
-      while(current != -1)
+      // print the free blocks as ranges (first-last)
+      while(current < totalBlocks)
       {
-        SysLib.cout(Integer.toString(current) + ","); 
-        SysLib.cread(current,blockData);
-        current = FileSystem.bytesToInt(0,blockData);
+        if(isUsed(current))
+        {
+          current++;
+          continue;
+        }
+        int first = current;
+        while(current < totalBlocks && !isUsed(current))
+        {
+          current++;
+        }
+        SysLib.cout(Integer.toString(first) + "-" + 
+                    Integer.toString(current - 1) + ","); 
       }
+      SysLib.cout("\n");
     }
     else if(cmd.toString().toLowerCase().equals("write"))
     {
       totalBlocks = x;
       totalInodes = y;
       freeList    = z;
+      dirty       = true;
       SysLib.cout("Writing: " + x + ", " + y + ", " + z + "\n");
     }
     else if(cmd.toString().toLowerCase().equals("sync"))
@@ -86,6 +774,9 @@ public class Superblock
       SysLib.cout("totalBlocks = " + Integer.toString(totalBlocks) + "\n");
       SysLib.cout("totalInodes = " + Integer.toString(totalInodes) + "\n");
       SysLib.cout("freeList    = " + Integer.toString(freeList   ) + "\n");
+      SysLib.cout("highWater   = " + Integer.toString(highWater.get()) + "\n");
+      SysLib.cout("inodes      = version " + Integer.toString(inodeVersion)
+                  + "\n");
     }
   }
 }
@@ -0,0 +1,1124 @@
+/*
+ * Test7
+ *
+ * checks the parts of the file system Test5 doesn't reach (commit policies,
+ * lots of files, and several threads using the file system at once)
+ *
+ * it formats the disk, so run it on its own: l Test7
+ *
+ * the threads it starts are more Test7s, told what to do by their arguments
+ * (see worker)
+ */
+class Test7 extends Thread {
+  final static int FILES = 48;
+  final String[] job;   // what a worker thread does, null for the main test
+
+  public Test7( String args[] ) {
+    job = args;
+  }
+
+  public Test7( ) {
+    job = null;
+  }
+
+  public void run( ) {
+    if ( job != null ) {
+      worker( );
+      SysLib.exit( );
+      return;
+    }
+
+    SysLib.format( FILES );
+    if ( test1( ) ) // writes alone still sync under COMMIT_PERIODIC
+      SysLib.cout( "Correct behavior of periodic commits\n" );
+    if ( test2( ) ) // deleting with deferred freeing on
+      SysLib.cout( "Correct behavior of deferred freeing\n" );
+    if ( test3( ) ) // inodes survive a sync and a remount (mapped store)
+      SysLib.cout( "Correct behavior of remounting the inodes\n" );
+    if ( test4( ) ) // indirect blocks are read and written once
+      SysLib.cout( "Correct behavior of the indirect block cache\n" );
+    if ( test5( ) ) // 2999 files in one directory, half deleted, remounted
+      SysLib.cout( "Correct behavior of a big directory\n" );
+    if ( test6( ) ) // 8 threads creating names, some of them the same
+      SysLib.cout( "Correct behavior of creating files in parallel\n" );
+    if ( test7( ) ) // threads opening a file while others delete it
+      SysLib.cout( "Correct behavior of opening while deleting\n" );
+    if ( test8( ) ) // syncing while threads append a block at a time
+      SysLib.cout( "Correct behavior of the free block bitmap\n" );
+    if ( test9( ) ) // several entries appending to the same file
+      SysLib.cout( "Correct behavior of appending in parallel\n" );
+    if ( test10( ) ) // formatting while deleted blocks wait to be freed
+      SysLib.cout( "Correct behavior of formatting with deferred frees\n" );
+    if ( test11( ) ) // mounting a disk formatted with the old free list
+      SysLib.cout( "Correct behavior of refusing old disks\n" );
+    if ( test12( ) ) // subdirectories, paths and the dentry cache
+      SysLib.cout( "Correct behavior of directories\n" );
+    if ( test13( ) ) // the kernel's PREAD and PWRITE calls
+      SysLib.cout( "Correct behavior of positional reads and writes\n" );
+    if ( test14( ) ) // READ and WRITE with an off and len, and ByteBuffers
+      SysLib.cout( "Correct behavior of partial buffers\n" );
+    if ( test15( ) ) // mounting a disk with version 1 inodes
+      SysLib.cout( "Correct behavior of converting version 1 inodes\n" );
+    if ( test16( ) ) // the directory growing while the disk is full
+      SysLib.cout( "Correct behavior of saving a directory on a full disk\n" );
+    if ( test17( ) ) // preallocating a file's blocks
+      SysLib.cout( "Correct behavior of fallocate\n" );
+    if ( test18( ) ) // a sync with a periodic commit due on every write
+      SysLib.cout( "Correct behavior of syncing under a period of 0\n" );
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // does one worker thread's job
+  //   create id : opens (making) 300 files, every other one shared by all
+  //               the workers (t0_1, t0_3, ...), the rest its own
+  //   churn id  : opens "race" (in a or w) and deletes it, 2000 times, then
+  //               makes "done" + id to say it got to the end, one byte long
+  //               for every open that failed
+  //   append id : writes "append" + id a block at a time, 60 blocks
+  //   log id    : opens "log" in a and writes 100 records of 10 bytes,
+  //               every byte of them is the worker's number
+  private void worker( ) {
+    if ( job[0].equals( "create" ) ) {
+      int id = Integer.parseInt( job[1] );
+      for ( int i = 0; i < 300; i++ ) {
+        int fd = SysLib.open( "t" + ( i % 2 == 0 ? id : 0 ) + "_" + i, "w" );
+        if ( fd != -1 )
+          SysLib.close( fd );
+      }
+    }
+    else if ( job[0].equals( "churn" ) ) {
+      byte[] buf = new byte[100];
+      int failed = 0;
+      for ( int i = 0; i < 2000; i++ ) {
+        int fd = SysLib.open( "race", i % 2 == 0 ? "a" : "w" );
+        if ( fd != -1 ) {
+          SysLib.write( fd, buf );
+          SysLib.close( fd );
+        }
+        else
+          failed++;
+        SysLib.delete( "race" );
+      }
+      int fd = SysLib.open( "done" + job[1], "w" );
+      SysLib.write( fd, new byte[failed] );
+      SysLib.close( fd );
+    }
+    else if ( job[0].equals( "append" ) ) {
+      int fd = SysLib.open( "append" + job[1], "w" );
+      byte[] block = new byte[512];
+      for ( int i = 0; i < 60; i++ )
+        SysLib.write( fd, block );
+      SysLib.close( fd );
+    }
+    else if ( job[0].equals( "log" ) ) {
+      int fd = SysLib.open( "log", "a" );
+      byte[] record = new byte[10];
+      for ( int i = 0; i < record.length; i++ )
+        record[i] = ( byte )Integer.parseInt( job[1] );
+      for ( int i = 0; i < 100; i++ )
+        SysLib.write( fd, record );
+      SysLib.close( fd );
+    }
+  }
+
+  // starts (n) workers with the same job (each gets its number after it),
+  // and waits for all of them to finish
+  private void workers( int n, String[] what ) {
+    start( n, what );
+    for ( int i = 0; i < n; i++ )
+      SysLib.join( );
+  }
+
+  // starts (n) workers with the same job, without waiting for them
+  private void start( int n, String[] what ) {
+    for ( int i = 0; i < n; i++ ) {
+      String[] cmd = new String[what.length + 2];
+      cmd[0] = "Test7";
+      for ( int j = 0; j < what.length; j++ )
+        cmd[j + 1] = what[j];
+      cmd[what.length + 1] = Integer.toString( i );
+      SysLib.exec( cmd );
+    }
+  }
+
+  // how many inodes are in use (the root directory's too)
+  private int inodesInUse( ) {
+    int used = 0;
+    for ( int i = 0; i < Inode.size( ); i++ )
+      if ( Inode.getInode( i ) != null )
+        used++;
+    return used;
+  }
+
+  // the length of an inode as it is on the disk (inodes are 32 bytes,
+  // 16 to a block, starting at block 1, and the length comes first)
+  private int diskLength( int inum ) {
+    byte[] block = new byte[512];
+    SysLib.cread( 1 + inum / 16, block );
+    return SysLib.bytes2int( block, ( inum % 16 ) * 32 );
+  }
+
+  // checks the free block bitmap on the disk against the files, gives
+  // back { how many blocks it says are used but no file has, how many it
+  // says are free but a file has } (the blocks before the first data block
+  // are the superblock, the inodes and the bitmap itself)
+  //
+  // the second is only meaningful right after a sync, blocks given out
+  // since the last one are free on the disk until the next
+  //
+  // files are only allowed to grow while this runs, so anything a file had
+  // when the bitmap was written, it still has when we look at the inodes
+  // afterwards (and a block is always given to a file with its inode
+  // locked, so taking the lock waits for one that's being given out)
+  private int[] auditBitmap( ) {
+    byte[] superblock = new byte[512];
+    SysLib.cread( 0, superblock );
+    int totalBlocks = SysLib.bytes2int( superblock, 0 );
+    int firstData = SysLib.bytes2int( superblock, 8 );
+    int mapBlocks = ( totalBlocks + 512 * 8 - 1 ) / ( 512 * 8 );
+    byte[] map = new byte[mapBlocks * 512];
+    byte[] block = new byte[512];
+    for ( int i = 0; i < mapBlocks; i++ ) {
+      SysLib.cread( firstData - mapBlocks + i, block );
+      System.arraycopy( block, 0, map, i * 512, 512 );
+    }
+
+    boolean[] owned = new boolean[totalBlocks];
+    for ( int i = 0; i < Inode.size( ); i++ ) {
+      Inode inode = Inode.getInode( i );
+      if ( inode == null )
+        continue;
+      inode.getLock( ).readLock( ).lock( );
+      try {
+        BlockMap blocks = new BlockMap( );
+        inode.addIndirectBlocks( blocks );
+        BlockMap[] maps = { inode.getBlockMap( ), blocks };
+        for ( int m = 0; m < maps.length; m++ )
+          for ( int e = 0; e < maps[m].extents( ); e++ )
+            for ( int j = 0; j < maps[m].extentLength( e ); j++ )
+              owned[maps[m].extentStart( e ) + j] = true;
+      } finally {
+        inode.getLock( ).readLock( ).unlock( );
+      }
+    }
+
+    int[] wrong = new int[2];
+    for ( int b = firstData; b < totalBlocks; b++ ) {
+      boolean used = ( map[b / 8] & ( 1 << ( b % 8 ) ) ) != 0;
+      if ( used != owned[b] )
+        wrong[used ? 0 : 1]++;
+    }
+    return wrong;
+  }
+
+  // how many bytes the append workers have written so far
+  private int appended( ) {
+    int size = 0;
+    for ( int i = 0; i < 8; i++ ) {
+      int fd = SysLib.open( "append" + i, "r" );
+      if ( fd != -1 ) {
+        size += SysLib.fsize( fd );
+        SysLib.close( fd );
+      }
+    }
+    return size;
+  }
+
+  // fills a buffer with a pattern that's different for each file
+  private byte[] pattern( int seed, int size ) {
+    byte[] buf = new byte[size];
+    for ( int i = 0; i < size; i++ )
+      buf[i] = ( byte )( seed * 31 + i );
+    return buf;
+  }
+
+  // whether a file has exactly what pattern( seed, size ) made
+  private boolean hasPattern( String name, int seed, int size ) {
+    int fd = SysLib.open( name, "r" );
+    if ( fd == -1 )
+      return false;
+    byte[] buf = new byte[size + 1];
+    int length = SysLib.fsize( fd );
+    int read = SysLib.read( fd, buf );
+    SysLib.close( fd );
+    if ( length != size || read != size )
+      return false;
+    byte[] expected = pattern( seed, size );
+    for ( int i = 0; i < size; i++ )
+      if ( buf[i] != expected[i] )
+        return false;
+    return true;
+  }
+
+  // syncs and loads the file system from the disk again, the same way the
+  // kernel does when it boots
+  private void remount( ) {
+    FileSystem.sync( );
+    new FileSystem( 1000 );
+  }
+
+  // rewrites the disk's inodes in version 1 (11 direct short pointers and
+  // a single indirect one), the blocks stay where they are, a file's
+  // single indirect block is reused as its version 1 indirect block, so
+  // every file has to be under 4 blocks, or 12 to 131
+  private boolean toVersion1( ) {
+    FileSystem.sync( );
+    InodeFormat v1 = InodeFormat.V1;
+    byte[] block = new byte[512];
+    for ( int i = 0; i < Inode.size( ); i++ ) {
+      Inode inode = Inode.getInode( i );
+      if ( inode == null )
+        continue;
+      BlockMap map = inode.getBlockMap( );
+      BlockMap indirect = new BlockMap( );
+      inode.addIndirectBlocks( indirect );
+      int[] blocks = new int[map.size( )];
+      int n = 0;
+      for ( int e = 0; e < map.extents( ); e++ )
+        for ( int j = 0; j < map.extentLength( e ); j++ )
+          blocks[n++] = map.extentStart( e ) + j;
+      if ( ( n > 3 && n < 12 ) || n > 131 )
+        return false;
+
+      if ( n > 11 ) {
+        byte[] pointers = new byte[512];
+        for ( int p = 0; p < 256; p++ )
+          v1.writePointer( p * 2, 11 + p < n ? blocks[11 + p] : -1, pointers );
+        SysLib.cwrite( indirect.extentStart( 0 ), pointers );
+      }
+      SysLib.cread( 1 + i / 16, block );
+      int at = ( i % 16 ) * 32 + 8;
+      for ( int p = 0; p < 11; p++ )
+        v1.writePointer( at + p * 2, p < n ? blocks[p] : -1, block );
+      v1.writePointer( at + 22, n > 11 ? indirect.extentStart( 0 ) : -1,
+                       block );
+      SysLib.cwrite( 1 + i / 16, block );
+    }
+    SysLib.cread( 0, block );
+    FileSystem.intToBytes( 20, 1, block );
+    SysLib.cwrite( 0, block );
+    return true;
+  }
+
+  // how many blocks have been read and written through the cache
+  private int[] ioStat( ) {
+    int[] counts = new int[2];
+    Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.IOSTAT, 0, counts );
+    return counts;
+  }
+
+  private int commitPolicy( int policy, int period ) {
+    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.COMMITPOLICY,
+                             policy, new int[] { period } );
+  }
+
+  private int deferFree( boolean on ) {
+    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.DEFERFREE,
+                             on ? 1 : 0, null );
+  }
+
+  private int mkdir( String path ) {
+    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.MKDIR, 0,
+                             path );
+  }
+
+  private int positional( int call, int fd, Object buffer, int[] where ) {
+    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, call, fd,
+                             new Object[] { buffer, where } );
+  }
+
+  private int readWrite( int call, int fd, Object args ) {
+    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, call, fd, args );
+  }
+
+  private int fallocate( int fd, int size ) {
+    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.FALLOCATE, fd,
+                             new int[] { size } );
+  }
+
+  // whether a file can be opened (and closes it if it can)
+  private boolean exists( String path ) {
+    int fd = SysLib.open( path, "r" );
+    if ( fd == -1 )
+      return false;
+    SysLib.close( fd );
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: periodic commit on write only.." );
+    if ( commitPolicy( FileSystem.COMMIT_PERIODIC, 100 ) != 0 ) {
+      SysLib.cout( "COMMITPOLICY failed (wrong)\n" );
+      return false;
+    }
+    int fd = SysLib.open( "periodic", "w" ); // inode 1, the first file
+    byte[] buf = new byte[100];
+    SysLib.write( fd, buf );
+    SysLib.sleep( 150 );
+    SysLib.write( fd, buf ); // a period has passed, so this one syncs
+    int length = diskLength( 1 );
+    SysLib.close( fd );
+    commitPolicy( FileSystem.COMMIT_IMMEDIATE, 0 );
+    if ( length != 200 ) {
+      SysLib.cout( "length on disk = " + length + " (wrong)\n" );
+      return false;
+    }
+    if ( commitPolicy( 3, 0 ) != -1 ) {
+      SysLib.cout( "COMMITPOLICY took a bad policy (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: delete with deferred freeing..." );
+    // with COMMIT_ON_CLOSE delete doesn't sync, so the blocks stay pending
+    // until the deferred freeing is turned off
+    commitPolicy( FileSystem.COMMIT_ON_CLOSE, 0 );
+    int fd = SysLib.open( "deferred", "w" );
+    SysLib.write( fd, new byte[512 * 10] ); // 10 blocks and 1 indirect
+    SysLib.close( fd );
+
+    int before = FileSystem.freeBlocks( );
+    deferFree( true );
+    SysLib.delete( "deferred" );
+    int pending = FileSystem.freeBlocks( );
+    deferFree( false );
+    int after = FileSystem.freeBlocks( );
+    commitPolicy( FileSystem.COMMIT_IMMEDIATE, 0 );
+    if ( pending != before ) {
+      SysLib.cout( "freed " + ( pending - before ) +
+                   " blocks while deferred (wrong)\n" );
+      return false;
+    }
+    if ( after != before + 11 ) {
+      SysLib.cout( "freed " + ( after - before ) + " blocks (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: sync and remount the inodes...." );
+    // empty, direct blocks only, single indirect and double indirect
+    int[] sizes = { 0, 100, 512 * 3, 512 * 40, 512 * 200 };
+    for ( int i = 0; i < sizes.length; i++ ) {
+      int fd = SysLib.open( "mapped" + i, "w" );
+      SysLib.write( fd, pattern( i, sizes[i] ) );
+      SysLib.close( fd );
+    }
+    SysLib.delete( "mapped1" );
+
+    remount( );
+    if ( !Inode.usesMappedStore( ) ) {
+      SysLib.cout( "inodes aren't in the mapped store (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < sizes.length; i++ ) {
+      if ( i != 1 && !hasPattern( "mapped" + i, i, sizes[i] ) ) {
+        SysLib.cout( "mapped" + i + " changed after remount (wrong)\n" );
+        return false;
+      }
+    }
+    if ( SysLib.open( "mapped1", "r" ) != -1 ) {
+      SysLib.cout( "mapped1 came back after remount (wrong)\n" );
+      return false;
+    }
+
+    // change them after the remount, and make sure that sticks too
+    int fd = SysLib.open( "mapped0", "w" );
+    SysLib.write( fd, pattern( 0, 512 * 5 ) );
+    SysLib.close( fd );
+    SysLib.delete( "mapped4" );
+    remount( );
+    if ( !hasPattern( "mapped0", 0, 512 * 5 ) ||
+         !hasPattern( "mapped3", 3, 512 * 40 ) ||
+         SysLib.open( "mapped4", "r" ) != -1 ) {
+      SysLib.cout( "changes lost after remount (wrong)\n" );
+      return false;
+    }
+
+    for ( int i = 0; i < sizes.length; i++ )
+      SysLib.delete( "mapped" + i );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: append and read 40 blocks......" );
+    // appending one block at a time only writes the data, the single
+    // indirect block stays in the inode's cache until the file is closed
+    int fd = SysLib.open( "appended", "w" );
+    byte[] block = new byte[512];
+    int[] start = ioStat( );
+    for ( int i = 0; i < 40; i++ )
+      SysLib.write( fd, block );
+    int[] end = ioStat( );
+    SysLib.close( fd );
+    SysLib.cout( "appends read " + ( end[0] - start[0] ) + " wrote " +
+                 ( end[1] - start[1] ) + ", " );
+    if ( end[0] != start[0] || end[1] - start[1] != 40 ) {
+      SysLib.cout( "(wrong)\n" );
+      return false;
+    }
+
+    // after a remount, reading it back reads the indirect block once
+    remount( );
+    fd = SysLib.open( "appended", "r" );
+    start = ioStat( );
+    for ( int i = 0; i < 40; i++ )
+      SysLib.read( fd, block );
+    end = ioStat( );
+    SysLib.close( fd );
+    SysLib.delete( "appended" );
+    SysLib.cout( "reads read " + ( end[0] - start[0] ) + "..." );
+    if ( end[0] - start[0] != 41 ) {
+      SysLib.cout( "(wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: 2999 creates, 1500 deletes....." );
+    // 3000 inodes, and the root directory has one of them
+    SysLib.format( 3000 );
+    commitPolicy( FileSystem.COMMIT_ON_CLOSE, 0 );
+    int made = 0;
+    for ( int i = 0; i < 2999; i++ ) {
+      int fd = SysLib.open( "file" + i, "w" );
+      if ( fd != -1 ) {
+        made++;
+        SysLib.close( fd );
+      }
+    }
+    int deleted = 0;
+    for ( int i = 0; i < 2999; i += 2 )
+      if ( SysLib.delete( "file" + i ) == 0 )
+        deleted++;
+    commitPolicy( FileSystem.COMMIT_IMMEDIATE, 0 );
+
+    // every file that's left is still there, and a sample of the deleted
+    // ones (opening a missing file prints a line) are still gone
+    remount( );
+    int found = 0;
+    for ( int i = 1; i < 2999; i += 2 ) {
+      int fd = SysLib.open( "file" + i, "r" );
+      if ( fd != -1 ) {
+        found++;
+        SysLib.close( fd );
+      }
+    }
+    int back = 0;
+    for ( int i = 0; i < 2999; i += 200 )
+      if ( SysLib.open( "file" + i, "r" ) != -1 )
+        back++;
+    SysLib.format( FILES );
+    if ( made != 2999 || deleted != 1500 || found != 1499 || back != 0 ) {
+      SysLib.cout( "made " + made + " deleted " + deleted + " found " +
+                   found + " came back " + back + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test6( ) {
+    //.............................................."
+    SysLib.cout( "6: 8 threads create 2400 names...." );
+    SysLib.format( 2000 );
+    workers( 8, new String[] { "create" } );
+
+    // 8 * 150 names of their own and 150 shared ones, each with exactly one
+    // inode, plus the root directory
+    int used = inodesInUse( );
+    int found = 0;
+    for ( int id = 0; id < 8; id++ ) {
+      for ( int i = 0; i < 300; i++ ) {
+        int fd = SysLib.open( "t" + ( i % 2 == 0 ? id : 0 ) + "_" + i, "r" );
+        if ( fd != -1 ) {
+          found++;
+          SysLib.close( fd );
+        }
+      }
+    }
+    SysLib.format( FILES );
+    if ( used != 1 + 8 * 150 + 150 || found != 2400 ) {
+      SysLib.cout( "inodes " + used + " found " + found + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test7( ) {
+    //.............................................."
+    SysLib.cout( "7: open and delete the same file.." );
+    // once everyone's done and the file is gone, every inode and block
+    // should be back (an open that lost to a delete used to either crash,
+    // or leave the inode counted as open forever), and every open should
+    // have worked (a and w make the file if a delete got there first), the
+    // directory gets its slots first, so it doesn't grow while we're
+    // counting
+    for ( int i = 0; i < 8; i++ ) {
+      SysLib.close( SysLib.open( "done" + i, "w" ) );
+      SysLib.delete( "done" + i );
+    }
+    SysLib.close( SysLib.open( "race", "w" ) );
+    SysLib.delete( "race" );
+    int free = FileSystem.freeBlocks( );
+
+    // syncing on every open and delete would line the threads up
+    commitPolicy( FileSystem.COMMIT_PERIODIC, 60000 );
+    workers( 8, new String[] { "churn" } );
+    commitPolicy( FileSystem.COMMIT_IMMEDIATE, 0 );
+    SysLib.delete( "race" );
+    int finished = 0;
+    int failed = 0;
+    for ( int i = 0; i < 8; i++ ) {
+      int fd = SysLib.open( "done" + i, "r" );
+      if ( fd != -1 ) {
+        failed += SysLib.fsize( fd );
+        SysLib.close( fd );
+      }
+      if ( SysLib.delete( "done" + i ) == 0 )
+        finished++;
+    }
+    int used = inodesInUse( );
+    int leaked = free - FileSystem.freeBlocks( );
+    if ( finished != 8 || failed != 0 || used != 1 || leaked != 0 ) {
+      SysLib.cout( finished + " threads finished, " + failed +
+                   " opens failed, inodes " + used + " blocks leaked " +
+                   leaked + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test8( ) {
+    //.............................................."
+    SysLib.cout( "8: sync while 8 threads append...." );
+    // every write syncs, so the bitmap is written while the other threads
+    // are reserving blocks, it should never save a reserved block as used
+    // (the disk would lose it if it crashed then), and once they're done
+    // and it's synced, it should never say a block a file has is free
+    // (the block would be given out twice after a remount)
+    SysLib.format( FILES );
+    commitPolicy( FileSystem.COMMIT_PERIODIC, 0 );
+    start( 8, new String[] { "append" } );
+    int stray = 0;
+    int audits = 0;
+    while ( appended( ) < 8 * 60 * 512 && audits++ < 100000 )
+      stray = Math.max( stray, auditBitmap( )[0] );
+    for ( int i = 0; i < 8; i++ )
+      SysLib.join( );
+    commitPolicy( FileSystem.COMMIT_IMMEDIATE, 0 );
+
+    FileSystem.sync( );
+    int[] wrong = auditBitmap( );
+    stray = Math.max( stray, wrong[0] );
+    int size = appended( );
+    for ( int i = 0; i < 8; i++ )
+      SysLib.delete( "append" + i );
+    if ( stray != 0 || wrong[1] != 0 || size != 8 * 60 * 512 ) {
+      SysLib.cout( "stray blocks " + stray + ", free but owned " +
+                   wrong[1] + ", " + size + " bytes written (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test9( ) {
+    //.............................................."
+    SysLib.cout( "9: append to one file from 8 fds.." );
+    // every append goes at the end the file has when it's written, not
+    // the end it had when it was opened
+    byte[] four = new byte[] { 1, 2, 3, 4 };
+    int fd = SysLib.open( "log", "w" );
+    SysLib.write( fd, four );
+    SysLib.close( fd );
+    int fd1 = SysLib.open( "log", "a" );
+    int fd2 = SysLib.open( "log", "a" );
+    SysLib.write( fd1, four );
+    SysLib.write( fd2, four );
+    SysLib.close( fd1 );
+    SysLib.close( fd2 );
+    fd = SysLib.open( "log", "r" );
+    int size = SysLib.fsize( fd );
+    SysLib.close( fd );
+    if ( size != 12 ) {
+      SysLib.cout( "two fds appended 8 bytes to 4, size " + size +
+                   " (wrong)\n" );
+      return false;
+    }
+
+    // 8 threads at once, each 10 byte record should land whole, after
+    // everything else, and nothing should be written over
+    SysLib.delete( "log" );
+    SysLib.close( SysLib.open( "log", "w" ) );
+    workers( 8, new String[] { "log" } );
+    byte[] all = new byte[8 * 100 * 10];
+    fd = SysLib.open( "log", "r" );
+    size = SysLib.fsize( fd );
+    SysLib.read( fd, all );
+    SysLib.close( fd );
+    SysLib.delete( "log" );
+    int[] records = new int[8];
+    int torn = 0;
+    for ( int i = 0; i < all.length; i += 10 ) {
+      for ( int j = 1; j < 10; j++ )
+        if ( all[i + j] != all[i] )
+          torn++;
+      if ( all[i] >= 0 && all[i] < 8 )
+        records[all[i]]++;
+    }
+    for ( int i = 0; i < 8; i++ )
+      if ( records[i] != 100 )
+        torn++;
+    if ( size != all.length || torn != 0 ) {
+      SysLib.cout( "size " + size + ", " + torn +
+                   " records torn or lost (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test10( ) {
+    //.............................................."
+    SysLib.cout( "10: format with frees deferred...." );
+    // the blocks "old" had are waiting to be freed when the disk is
+    // formatted, the sync after that mustn't free them, "new" has them now
+    SysLib.format( FILES );
+    commitPolicy( FileSystem.COMMIT_ON_CLOSE, 0 );
+    int fd = SysLib.open( "old", "w" );
+    SysLib.write( fd, new byte[512 * 20] );
+    SysLib.close( fd );
+    deferFree( true );
+    SysLib.delete( "old" );
+
+    SysLib.format( FILES );
+    int free = FileSystem.freeBlocks( );
+    fd = SysLib.open( "new", "w" );
+    SysLib.write( fd, pattern( 10, 512 * 21 ) );
+    SysLib.close( fd ); // syncs
+    int used = free - FileSystem.freeBlocks( );
+    fd = SysLib.open( "later", "w" );
+    SysLib.write( fd, pattern( 11, 512 * 21 ) );
+    SysLib.close( fd );
+    deferFree( false );
+    commitPolicy( FileSystem.COMMIT_IMMEDIATE, 0 );
+
+    boolean intact = hasPattern( "new", 10, 512 * 21 ) &&
+                     hasPattern( "later", 11, 512 * 21 );
+    SysLib.delete( "new" );
+    SysLib.delete( "later" );
+    if ( used < 21 || !intact ) {
+      SysLib.cout( "new uses " + used + " blocks" +
+                   ( intact ? "" : ", overwritten" ) + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test11( ) {
+    //.............................................."
+    SysLib.cout( "11: mount an old free list disk..." );
+    // a disk without the magic number in block 0 was formatted with the
+    // linked free list, mounting it mustn't read or write anything on it
+    SysLib.format( FILES );
+    int fd = SysLib.open( "old", "w" );
+    SysLib.write( fd, pattern( 12, 512 * 5 ) );
+    SysLib.close( fd );
+    FileSystem.sync( );
+    byte[] block = new byte[512];
+    SysLib.cread( 0, block );
+    FileSystem.intToBytes( 24, 0, block );
+    SysLib.cwrite( 0, block );
+    byte[][] before = new byte[64][512];
+    for ( int i = 0; i < before.length; i++ )
+      SysLib.cread( i, before[i] );
+
+    new FileSystem( 1000 );
+    boolean opened = SysLib.open( "old", "r" ) != -1 ||
+                     SysLib.open( "made", "w" ) != -1;
+    FileSystem.sync( );
+    int changed = 0;
+    for ( int i = 0; i < before.length; i++ ) {
+      SysLib.cread( i, block );
+      if ( !java.util.Arrays.equals( block, before[i] ) )
+        changed++;
+    }
+
+    // formatting makes it usable again
+    SysLib.format( FILES );
+    boolean usable = false;
+    fd = SysLib.open( "made", "w" );
+    if ( fd != -1 ) {
+      usable = SysLib.write( fd, pattern( 13, 512 * 5 ) ) == 512 * 5;
+      SysLib.close( fd );
+      usable = usable && hasPattern( "made", 13, 512 * 5 );
+      SysLib.delete( "made" );
+    }
+    if ( opened || changed != 0 || !usable ) {
+      SysLib.cout( ( opened ? "a file opened, " : "" ) + changed +
+                   " blocks changed" + ( usable ? "" : ", no format" ) +
+                   " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test12( ) {
+    //.............................................."
+    SysLib.cout( "12: directories and paths........." );
+    SysLib.format( FILES );
+    String[] bad = {
+      mkdir( "/docs" ) != 0 ? "mkdir /docs" : null,
+      mkdir( "/docs" ) != -1 ? "mkdir /docs twice" : null,
+      mkdir( "/missing/x" ) != -1 ? "mkdir under a missing directory" : null,
+      mkdir( "/.." ) != -1 ? "mkdir above the root" : null,
+    };
+    if ( !noneBad( bad ) )
+      return false;
+
+    int fd = SysLib.open( "/docs/notes", "w" );
+    SysLib.write( fd, pattern( 14, 700 ) );
+    SysLib.close( fd );
+    mkdir( "/docs/deep" );
+    mkdir( "docs/deep/er" ); // no leading /, still from the root
+    fd = SysLib.open( "/docs/deep/er/f", "w" );
+    SysLib.write( fd, pattern( 15, 900 ) );
+    SysLib.close( fd );
+    bad = new String[] {
+      mkdir( "/docs/notes/x" ) != -1 ? "mkdir under a file" : null,
+      SysLib.open( "/docs/notes/x", "w" ) != -1 ? "file under a file" : null,
+      SysLib.open( "/docs", "r" ) != -1 ? "opened a directory" : null,
+      SysLib.open( "/nowhere/f", "w" ) != -1 ? "missing directory" : null,
+      !hasPattern( "/docs/./deep/../deep/er/f", 15, 900 ) ? ". and .." : null,
+      SysLib.delete( "/docs/deep" ) != -1 ? "deleted a full directory" : null,
+    };
+    if ( !noneBad( bad ) )
+      return false;
+
+    // the dentry cache has /docs/deep/er as a directory, once it's a file
+    // nothing can be found under it
+    SysLib.delete( "/docs/deep/er/f" );
+    boolean gone = !exists( "/docs/deep/er/f" );
+    boolean emptied = SysLib.delete( "/docs/deep/er" ) == 0;
+    SysLib.close( SysLib.open( "/docs/deep/er", "w" ) );
+    bad = new String[] {
+      !gone ? "deleted file still opens" : null,
+      !emptied ? "couldn't delete an empty directory" : null,
+      SysLib.open( "/docs/deep/er/f", "w" ) != -1 ? "file under a file" : null,
+    };
+    if ( !noneBad( bad ) )
+      return false;
+
+    // everything's still there after a remount, then it all goes
+    remount( );
+    bad = new String[] {
+      !hasPattern( "/docs/notes", 14, 700 ) ? "notes after remount" : null,
+      !exists( "/docs/deep/er" ) ? "er after remount" : null,
+      mkdir( "/docs/deep" ) != -1 ? "mkdir /docs/deep after remount" : null,
+      SysLib.delete( "/docs" ) != -1 ? "deleted a full directory" : null,
+      SysLib.delete( "/docs/deep/er" ) != 0 ? "delete er" : null,
+      SysLib.delete( "/docs/deep" ) != 0 ? "delete deep" : null,
+      SysLib.delete( "/docs/notes" ) != 0 ? "delete notes" : null,
+      SysLib.delete( "/docs" ) != 0 ? "delete docs" : null,
+      inodesInUse( ) != 1 ? "inodes left over" : null,
+    };
+    if ( !noneBad( bad ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  // prints the first check that went wrong, if any did
+  private boolean noneBad( String[] bad ) {
+    for ( int i = 0; i < bad.length; i++ ) {
+      if ( bad[i] != null ) {
+        SysLib.cout( bad[i] + " (wrong)\n" );
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean test13( ) {
+    //.............................................."
+    SysLib.cout( "13: PREAD and PWRITE.............." );
+    SysLib.format( FILES );
+    int fd = SysLib.open( "pos", "w+" );
+    SysLib.write( fd, pattern( 16, 20 ) );
+    byte[] five = pattern( 17, 5 );
+    byte[] ten = new byte[10];
+    int pwrite = Kernel.PWRITE;
+    int pread = Kernel.PREAD;
+    String[] bad = {
+      // the whole buffer at the end, then past the end (no holes)
+      positional( pwrite, fd, five, new int[] { 20 } ) != 5 ?
+        "pwrite at the end" : null,
+      SysLib.fsize( fd ) != 25 ? "size after pwrite" : null,
+      positional( pwrite, fd, five, new int[] { 26 } ) != -1 ?
+        "pwrite past the end" : null,
+      positional( pwrite, fd, five, new int[] { -1 } ) != -1 ?
+        "pwrite before the start" : null,
+
+      // part of a buffer, bytes 5-10 of the file into ten[2..8]
+      positional( pread, fd, ten, new int[] { 5, 2, 6 } ) != 6 ?
+        "pread into the middle" : null,
+      ten[1] != 0 || ten[2] != pattern( 16, 20 )[5] || ten[8] != 0 ?
+        "pread put the bytes in the wrong place" : null,
+      positional( pread, fd, ten, new int[] { 22, 0, 10 } ) != 3 ?
+        "pread over the end" : null,
+      positional( pread, fd, ten, new int[] { 25 } ) != 0 ?
+        "pread at the end" : null,
+
+      // off and len have to fit in the buffer, and come together
+      positional( pread, fd, ten, new int[] { 0, 8, 5 } ) != -1 ?
+        "pread past the buffer" : null,
+      positional( pwrite, fd, five, new int[] { 0, 1 } ) != -1 ?
+        "pwrite with an off and no len" : null,
+      positional( pread, fd, ten, new int[] { } ) != -1 ?
+        "pread with no offset" : null,
+
+      // a ByteBuffer is read into from its position to its limit
+      positional( pread, fd, java.nio.ByteBuffer.wrap( ten, 0, 4 ),
+                  new int[] { 20 } ) != 4 || ten[0] != five[0] ?
+        "pread into a ByteBuffer" : null,
+      positional( pread, fd, java.nio.ByteBuffer.wrap( ten ),
+                  new int[] { 0, 0, 3 } ) != -1 ?
+        "ByteBuffer with an off and len" : null,
+
+      // none of it moves the seek pointer
+      SysLib.seek( fd, 0, FileSystem.SEEK_CUR ) != 20 ? "seek moved" : null,
+    };
+    SysLib.close( fd );
+    SysLib.delete( "pos" );
+    if ( !noneBad( bad ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test14( ) {
+    //.............................................."
+    SysLib.cout( "14: READ and WRITE with off, len.." );
+    SysLib.format( FILES );
+    byte[] data = pattern( 18, 30 );
+    int fd = SysLib.open( "part", "w+" );
+    int read = Kernel.READ;
+    int write = Kernel.WRITE;
+    byte[] into = new byte[30];
+    java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect( 8 );
+    String[] bad = {
+      // data[10..20], then data[20..25] from a ByteBuffer
+      readWrite( write, fd, new Object[] { data, new int[] { 10, 10 } } )
+        != 10 ? "write an off and len" : null,
+      readWrite( write, fd, java.nio.ByteBuffer.wrap( data, 20, 5 ) )
+        != 5 ? "write a ByteBuffer" : null,
+      SysLib.fsize( fd ) != 15 ? "size after writing" : null,
+
+      // off and len have to fit in the buffer, and come as a pair
+      readWrite( write, fd, new Object[] { data, new int[] { 25, 6 } } )
+        != -1 ? "write past the buffer" : null,
+      readWrite( write, fd, new Object[] { data, new int[] { -1, 2 } } )
+        != -1 ? "write before the buffer" : null,
+      readWrite( read, fd, new Object[] { into, new int[] { 0 } } )
+        != -1 ? "read with no len" : null,
+      SysLib.fsize( fd ) != 15 ? "size after bad writes" : null,
+    };
+    if ( !noneBad( bad ) ) {
+      SysLib.close( fd );
+      return false;
+    }
+
+    // back to the start, 15 bytes into into[5..20], then 8 into a direct
+    // buffer (its position moves past them, the seek pointer too)
+    SysLib.seek( fd, 0, FileSystem.SEEK_SET );
+    int got = readWrite( read, fd,
+                         new Object[] { into, new int[] { 5, 20 } } );
+    boolean placed = into[4] == 0 && into[20] == 0;
+    for ( int i = 0; i < 15; i++ )
+      placed = placed && into[5 + i] == data[10 + i];
+    SysLib.seek( fd, 0, FileSystem.SEEK_SET );
+    int gotDirect = readWrite( read, fd, direct );
+    boolean direct8 = direct.position( ) == 8;
+    for ( int i = 0; i < 8; i++ )
+      direct8 = direct8 && direct.get( i ) == data[10 + i];
+    int seek = SysLib.seek( fd, 0, FileSystem.SEEK_CUR );
+    SysLib.close( fd );
+    SysLib.delete( "part" );
+    bad = new String[] {
+      got != 15 || !placed ? "read into the middle" : null,
+      gotDirect != 8 || !direct8 ? "read into a direct ByteBuffer" : null,
+      seek != 8 ? "seek after reading a ByteBuffer" : null,
+    };
+    if ( !noneBad( bad ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test15( ) {
+    //.............................................."
+    SysLib.cout( "15: convert version 1 inodes......" );
+    // files with only direct pointers, and past them (into the indirect
+    // block), mounted from version 1 inodes
+    SysLib.format( FILES );
+    int[] sizes = { 700, 512 * 40, 512 * 100 + 7 };
+    for ( int i = 0; i < sizes.length; i++ ) {
+      int fd = SysLib.open( "v" + i, "w" );
+      SysLib.write( fd, pattern( 20 + i, sizes[i] ) );
+      SysLib.close( fd );
+    }
+    if ( !toVersion1( ) ) {
+      SysLib.cout( "couldn't make a version 1 disk (wrong)\n" );
+      return false;
+    }
+    new FileSystem( 1000 );
+
+    byte[] block = new byte[512];
+    SysLib.cread( 0, block );
+    int version = SysLib.bytes2int( block, 20 );
+    boolean converted = true;
+    for ( int i = 0; i < sizes.length; i++ )
+      converted = converted && hasPattern( "v" + i, 20 + i, sizes[i] );
+    FileSystem.sync( );
+    int[] wrong = auditBitmap( );
+
+    // and it stays converted
+    remount( );
+    boolean kept = true;
+    for ( int i = 0; i < sizes.length; i++ ) {
+      kept = kept && hasPattern( "v" + i, 20 + i, sizes[i] );
+      SysLib.delete( "v" + i );
+    }
+    String[] bad = {
+      version != 2 ? "version " + version + " on the disk" : null,
+      !converted ? "files changed converting" : null,
+      wrong[0] != 0 || wrong[1] != 0 ?
+        "bitmap off by " + wrong[0] + " used, " + wrong[1] + " free" : null,
+      !kept ? "files changed after a remount" : null,
+    };
+    if ( !noneBad( bad ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test16( ) {
+    //.............................................."
+    SysLib.cout( "16: directory on a full disk......" );
+    // "fill" takes every block, then d14 needs a new directory block (15
+    // entries to a block, fill and d0 - d13 are in the first), it can't be
+    // saved until fill is deleted, and then it has to be
+    SysLib.format( FILES );
+    int fd = SysLib.open( "fill", "w" );
+    byte[] block = new byte[512];
+    while ( SysLib.write( fd, block ) == 512 )
+      ;
+    SysLib.close( fd );
+    for ( int i = 0; i < 15; i++ )
+      SysLib.close( SysLib.open( "d" + i, "w" ) );
+    SysLib.delete( "fill" );
+
+    remount( );
+    int found = 0;
+    for ( int i = 0; i < 15; i++ ) {
+      if ( exists( "d" + i ) )
+        found++;
+      SysLib.delete( "d" + i );
+    }
+    if ( found != 15 ) {
+      SysLib.cout( found + " of 15 files after a remount (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test17( ) {
+    //.............................................."
+    SysLib.cout( "17: fallocate 20 blocks..........." );
+    // the blocks are taken up front, the size doesn't change, and writing
+    // the file afterwards uses them instead of taking more
+    SysLib.format( FILES );
+    int fd = SysLib.open( "pre", "w" );
+    int free = FileSystem.freeBlocks( );
+    int result = fallocate( fd, 512 * 20 );
+    int size = SysLib.fsize( fd );
+    int taken = free - FileSystem.freeBlocks( );
+    SysLib.write( fd, pattern( 30, 512 * 20 ) );
+    int more = free - FileSystem.freeBlocks( ) - taken;
+    int smaller = fallocate( fd, 512 );
+    int negative = fallocate( fd, -1 );
+    SysLib.close( fd );
+    boolean written = hasPattern( "pre", 30, 512 * 20 );
+    fd = SysLib.open( "pre", "r" );
+    int readOnly = fallocate( fd, 512 * 30 );
+    SysLib.close( fd );
+    SysLib.delete( "pre" );
+
+    String[] bad = {
+      result != 0 ? "fallocate failed" : null,
+      size != 0 ? "size " + size + " after fallocate" : null,
+      taken < 20 ? "only " + taken + " blocks taken" : null,
+      more != 0 ? "writing took " + more + " more blocks" : null,
+      !written ? "file changed" : null,
+      smaller != 0 ? "fallocate less than it has" : null,
+      negative != -1 ? "fallocate a negative size" : null,
+      readOnly != -1 ? "fallocate a file open for reading" : null,
+    };
+    if ( !noneBad( bad ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test18( ) {
+    //.............................................."
+    SysLib.cout( "18: sync with a period of 0......." );
+    // the sync writes the directory, which makes a periodic commit due,
+    // it mustn't start another sync inside this one (which writes it all
+    // again), so it should cost the same as with a long period
+    SysLib.format( FILES );
+    int[] writes = new int[2];
+    int[] periods = { 60000, 0 };
+    for ( int i = 0; i < 2; i++ ) {
+      commitPolicy( FileSystem.COMMIT_PERIODIC, 60000 );
+      int fd = SysLib.open( "p" + i, "w" );
+      SysLib.write( fd, new byte[512 * 5] );
+      SysLib.close( fd );
+      commitPolicy( FileSystem.COMMIT_PERIODIC, periods[i] );
+      int before = ioStat( )[1];
+      FileSystem.sync( );
+      writes[i] = ioStat( )[1] - before;
+    }
+    commitPolicy( FileSystem.COMMIT_IMMEDIATE, 0 );
+    SysLib.delete( "p0" );
+    SysLib.delete( "p1" );
+    if ( writes[1] != writes[0] ) {
+      SysLib.cout( "sync wrote " + writes[1] + " blocks, not " + writes[0] +
+                   " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}